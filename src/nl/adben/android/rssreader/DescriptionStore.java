@@ -0,0 +1,481 @@
+/*
+ * Copyright (C) 2013
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package nl.adben.android.rssreader;
+
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decodes descriptions on demand instead of at parse time.
+ * <p/>
+ * The raw body of each downloaded feed is written to the cache directory and
+ * scanned once for the byte range of every description element. Entries
+ * only keep the index of their description in that file; the text is read
+ * through a memory mapping and summarized when its row is first shown, and
+ * the summaries are kept in a cache bounded in characters. Heap use thus
+ * follows the rows on screen rather than the size of the feeds.
+ * <p/>
+ * The last {@link #GENERATIONS} bodies of each feed are kept on disk, so
+ * that older entries of the timeline can still be decoded after a refresh.
+ */
+public class DescriptionStore implements MemoryGovernor.Trimmable {
+    static final String DIRECTORY = "feeds";
+    static final String SUFFIX = ".xml";
+    /*
+     * Default bound of the summary cache, in characters
+     */
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+    static final int GENERATIONS = 3;
+    private static final String DESCRIPTION = "description";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File directory;
+    private final LruCache<Long, String> summaries;
+    private final Map<String, LinkedList<RawFeed>> generations = new HashMap<String, LinkedList<RawFeed>>();
+    private final AtomicLong nextId = new AtomicLong(1);
+    private boolean cleared = false;
+
+    /**
+     * @param directory where the raw feeds are written, emptied on first use
+     * @param capacity  bound of the summary cache, in characters
+     */
+    public DescriptionStore(File directory, int capacity) {
+        this.directory = directory;
+        summaries = new LruCache<Long, String>(capacity) {
+            @Override
+            protected int sizeOf(Long key, String summary) {
+                return summary.length() + 1;
+            }
+        };
+    }
+
+    /**
+     * Writes the body of a feed to disk and locates its descriptions. Runs
+     * off the UI thread.
+     *
+     * @param feedUrl url of the feed
+     * @param bytes   body of the response
+     * @param length  number of valid bytes
+     * @return the raw feed, null if its encoding cannot be scanned byte by
+     * byte
+     */
+    public RawFeed save(String feedUrl, byte[] bytes, int length)
+            throws IOException {
+        // descriptions are located on bytes: only ASCII compatible encodings
+        if (length >= 2 && ((bytes[0] == (byte) 0xfe && bytes[1] == (byte) 0xff)
+                || (bytes[0] == (byte) 0xff && bytes[1] == (byte) 0xfe))) {
+            return null;
+        }
+        List<RawFeed> expired = new ArrayList<RawFeed>();
+        RawFeed raw;
+        synchronized (this) {
+            if (!cleared) {
+                // entries do not outlive the process, neither do their files
+                clearDirectory();
+                cleared = true;
+            }
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Cannot create " + directory);
+            }
+            long id = nextId.getAndIncrement();
+            raw = new RawFeed(id, new File(directory, Long.toHexString(
+                    DuplicateIndex.hash64(feedUrl)) + "-" + id + SUFFIX));
+            LinkedList<RawFeed> feedGenerations = generations.get(feedUrl);
+            if (feedGenerations == null) {
+                feedGenerations = new LinkedList<RawFeed>();
+                generations.put(feedUrl, feedGenerations);
+            }
+            feedGenerations.addFirst(raw);
+            while (feedGenerations.size() > GENERATIONS) {
+                expired.add(feedGenerations.removeLast());
+            }
+        }
+        for (RawFeed old : expired) {
+            old.file.delete();
+        }
+        FileOutputStream out = new FileOutputStream(raw.file);
+        try {
+            out.write(bytes, 0, length);
+        } finally {
+            out.close();
+        }
+        locateDescriptions(raw, bytes, length);
+        return raw;
+    }
+
+    /**
+     * @return the cached summary of the entry's description, null if it has
+     * not been decoded yet or the entry has no description on disk
+     */
+    public String peek(Entry entry) {
+        synchronized (entry) {
+            if (entry.getRawFeed() == null) {
+                return null;
+            }
+            return summaries.get(key(entry.getRawFeed(),
+                    entry.getDescriptionIndex()));
+        }
+    }
+
+    /**
+     * Reads and summarizes the description of an entry, through the cache.
+     * Runs off the UI thread.
+     *
+     * @param entry      entry parsed with a raw feed
+     * @param summarizer summarizer owned by the calling thread
+     * @return the summary, empty if the entry has no description, null if
+     * the raw feed cannot be read; failures are not cached, the entry may
+     * point to a newer raw feed later
+     */
+    public String decode(Entry entry, HtmlSummarizer summarizer) {
+        RawFeed raw;
+        int index;
+        synchronized (entry) {
+            raw = entry.getRawFeed();
+            index = entry.getDescriptionIndex();
+        }
+        if (raw == null) {
+            return "";
+        }
+        Long key = key(raw, index);
+        String summary = summaries.get(key);
+        if (summary != null) {
+            return summary;
+        }
+        if (index < 0 || index >= raw.count) {
+            // cached too, or the row would be bound and decoded again
+            summaries.put(key, "");
+            return "";
+        }
+        try {
+            summary = summarizer.summarize(read(raw, raw.offsets[index],
+                    raw.lengths[index]));
+        } catch (IOException e) {
+            // the body of an old generation has been deleted
+            Log.d(DescriptionStore.class.getSimpleName(), e.toString());
+            return null;
+        }
+        summaries.put(key, summary);
+        return summary;
+    }
+
+    /**
+     * Summaries depend on the summary length; drops them when it changes.
+     */
+    public void invalidate() {
+        summaries.evictAll();
+    }
+
+    private static Long key(RawFeed raw, int index) {
+        return (raw.id << 20) ^ index;
+    }
+
+    private static String read(RawFeed raw, int offset, int length)
+            throws IOException {
+        if (length == 0) {
+            return "";
+        }
+        FileInputStream in = new FileInputStream(raw.file);
+        try {
+            MappedByteBuffer mapped = in.getChannel().map(
+                    FileChannel.MapMode.READ_ONLY, offset, length);
+            byte[] bytes = new byte[length];
+            mapped.get(bytes);
+            return unescape(new String(bytes, raw.getCharset()));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Turns the content of an XML element back into its text: CDATA sections
+     * are copied as is, character references and the predefined entities are
+     * decoded.
+     */
+    static String unescape(String content) {
+        if (content.indexOf('&') < 0 && content.indexOf('<') < 0) {
+            return content;
+        }
+        StringBuilder text = new StringBuilder(content.length());
+        int i = 0;
+        while (i < content.length()) {
+            char c = content.charAt(i);
+            if (c == '<' && content.startsWith("<![CDATA[", i)) {
+                int end = content.indexOf("]]>", i + 9);
+                if (end < 0) {
+                    end = content.length();
+                }
+                text.append(content, i + 9, end);
+                i = end + 3;
+            } else if (c == '&') {
+                int semicolon = content.indexOf(';', i);
+                char decoded = semicolon > i + 1 && semicolon - i <= 10
+                        ? entity(content.substring(i + 1, semicolon)) : 0;
+                if (decoded == 0) {
+                    text.append(c);
+                    i++;
+                } else {
+                    text.append(decoded);
+                    i = semicolon + 1;
+                }
+            } else {
+                text.append(c);
+                i++;
+            }
+        }
+        return text.toString();
+    }
+
+    private static char entity(String name) {
+        if (name.equals("lt")) {
+            return '<';
+        } else if (name.equals("gt")) {
+            return '>';
+        } else if (name.equals("amp")) {
+            return '&';
+        } else if (name.equals("quot")) {
+            return '"';
+        } else if (name.equals("apos")) {
+            return '\'';
+        } else if (name.charAt(0) == '#') {
+            try {
+                int code = name.charAt(1) == 'x' || name.charAt(1) == 'X'
+                        ? Integer.parseInt(name.substring(2), 16)
+                        : Integer.parseInt(name.substring(1));
+                return code > 0 && code < 0xffff ? (char) code : 0;
+            } catch (NumberFormatException e) {
+                return 0;
+            } catch (StringIndexOutOfBoundsException e) {
+                return 0;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Records the content range of every description element, in document
+     * order, the order in which the parser meets them. Comments and CDATA
+     * sections are skipped so that markup quoted in them is not counted.
+     */
+    static void locateDescriptions(RawFeed raw, byte[] bytes, int length) {
+        int[] offsets = new int[16];
+        int[] lengths = new int[16];
+        int count = 0;
+        int i = 0;
+        while (i < length) {
+            if (bytes[i] != '<') {
+                i++;
+            } else if (startsWith(bytes, length, i, "<!--")) {
+                i = indexOf(bytes, length, "-->", i + 4) + 3;
+            } else if (startsWith(bytes, length, i, "<![CDATA[")) {
+                i = indexOf(bytes, length, "]]>", i + 9) + 3;
+            } else if (isDescriptionTag(bytes, length, i + 1)) {
+                int end = indexOf(bytes, length, ">", i);
+                int start = Math.min(end + 1, length);
+                int close = start;
+                if (bytes[end - 1] != '/') {
+                    close = closingTag(bytes, length, start);
+                }
+                if (count == offsets.length) {
+                    int[] grown = new int[count * 2];
+                    System.arraycopy(offsets, 0, grown, 0, count);
+                    offsets = grown;
+                    grown = new int[count * 2];
+                    System.arraycopy(lengths, 0, grown, 0, count);
+                    lengths = grown;
+                }
+                offsets[count] = start;
+                lengths[count] = close - start;
+                count++;
+                i = close;
+            } else {
+                i++;
+            }
+        }
+        raw.offsets = offsets;
+        raw.lengths = lengths;
+        raw.count = count;
+    }
+
+    /**
+     * @return index of the closing description tag after {@code from},
+     * skipping CDATA sections; the end of the body if there is none
+     */
+    private static int closingTag(byte[] bytes, int length, int from) {
+        int i = from;
+        while (i < length) {
+            if (bytes[i] == '<') {
+                if (startsWith(bytes, length, i, "<![CDATA[")) {
+                    i = indexOf(bytes, length, "]]>", i + 9) + 3;
+                    continue;
+                }
+                if (i + 1 < length && bytes[i + 1] == '/'
+                        && isDescriptionTag(bytes, length, i + 2)) {
+                    return i;
+                }
+            }
+            i++;
+        }
+        return length;
+    }
+
+    private static boolean isDescriptionTag(byte[] bytes, int length, int at) {
+        int end = at + DESCRIPTION.length();
+        if (end >= length) {
+            return false;
+        }
+        for (int i = 0; i < DESCRIPTION.length(); i++) {
+            if ((bytes[at + i] | 0x20) != DESCRIPTION.charAt(i)) {
+                return false;
+            }
+        }
+        byte next = bytes[end];
+        return next == '>' || next == '/' || next == ' ' || next == '\t'
+                || next == '\r' || next == '\n';
+    }
+
+    private static boolean startsWith(byte[] bytes, int length, int at,
+                                      String prefix) {
+        if (at + prefix.length() > length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (bytes[at + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return index of {@code needle}, {@code length} if absent
+     */
+    private static int indexOf(byte[] bytes, int length, String needle,
+                               int from) {
+        for (int i = from; i < length; i++) {
+            if (startsWith(bytes, length, i, needle)) {
+                return i;
+            }
+        }
+        return length;
+    }
+
+    private synchronized void clearDirectory() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    @Override
+    public long sizeBytes() {
+        return summaries.size() * 2L;
+    }
+
+    @Override
+    public void spill() {
+        // summaries are decoded again from the raw feeds
+    }
+
+    @Override
+    public void trimToBytes(long bytes) {
+        int target = (int) Math.min(bytes / 2, Integer.MAX_VALUE);
+        if (target == 0) {
+            summaries.evictAll();
+            return;
+        }
+        // snapshot() lists the summaries least recently used first
+        for (Long key : summaries.snapshot().keySet()) {
+            if (summaries.size() <= target) {
+                break;
+            }
+            summaries.remove(key);
+        }
+    }
+
+    /**
+     * Body of one download of a feed on disk, with the byte range of each of
+     * its descriptions
+     */
+    public static final class RawFeed {
+        final long id;
+        final File file;
+        int[] offsets;
+        int[] lengths;
+        int count;
+        private boolean cleared = false;
+        private volatile String encoding;
+
+        RawFeed(long id, File file) {
+            this.id = id;
+            this.file = file;
+        }
+
+        /**
+         * @return number of description elements found in the body
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * Forgets the descriptions, the feed must then be parsed again with
+         * eager summaries.
+         */
+        void clear() {
+            count = 0;
+            cleared = true;
+        }
+
+        /**
+         * @return whether the descriptions were forgotten, their offsets did
+         * not match the parsed document
+         */
+        public boolean isCleared() {
+            return cleared;
+        }
+
+        /**
+         * @param encoding encoding detected by the parser, null for UTF-8
+         */
+        public void setEncoding(String encoding) {
+            this.encoding = encoding;
+        }
+
+        Charset getCharset() {
+            try {
+                return encoding == null ? UTF_8 : Charset.forName(encoding);
+            } catch (RuntimeException e) {
+                return UTF_8;
+            }
+        }
+    }
+}
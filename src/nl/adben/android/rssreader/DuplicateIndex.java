@@ -0,0 +1,516 @@
+/*
+ * Copyright (C) 2013
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package nl.adben.android.rssreader;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Detects the same story showing up in several feeds as they are merged into
+ * the timeline.
+ * <p/>
+ * Every entry is reduced to two 64 bit keys: a hash of its canonical link
+ * (tracking parameters, fragments and redirect wrappers removed) and a SimHash
+ * fingerprint of its title. Links are looked up in a chained hash table, titles
+ * in four 16 bit bands so that any fingerprint within {@link #MAX_DISTANCE}
+ * bits shares at least one band bucket with its near duplicate. Both lookups
+ * are O(1) on average.
+ * <p/>
+ * The index holds at most {@code capacity} entries in fixed primitive arrays;
+ * once full the oldest entry is overwritten, so memory never grows past
+ * {@link #estimatedBytes()}. The arrays are allocated on the first entry and
+ * released when the memory governor trims the index.
+ */
+public class DuplicateIndex implements MemoryGovernor.Trimmable {
+    public static final int DEFAULT_CAPACITY = 4096;
+    /*
+     * Maximum hamming distance between two title fingerprints that are still
+     * considered the same story. Must be lower than BANDS for the banding
+     * lookup to find every candidate.
+     */
+    static final int MAX_DISTANCE = 3;
+    /*
+     * Titles shorter than this are too generic ("Ask HN", "Links") to be
+     * matched on their fingerprint alone.
+     */
+    static final int MIN_TITLE_LENGTH = 16;
+    private static final int BANDS = 4;
+    private static final int BAND_BITS = 64 / BANDS;
+    private static final int EMPTY = -1;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final String[] TRACKING_PARAMS = {"fbclid", "gclid",
+            "yclid", "dclid", "mc_cid", "mc_eid", "igshid", "ref_src", "_hsenc",
+            "_hsmi", "spm"};
+    /*
+     * Known redirect services: host, path prefix and the parameter holding
+     * the target. Other hosts keep such parameters, they are part of the
+     * link there.
+     */
+    private static final String[][] REDIRECTORS = {
+            {"google.com", "/url", "url"},
+            {"google.com", "/url", "q"},
+            {"news.google.com", "/news/url", "url"},
+            {"l.facebook.com", "/l.php", "u"},
+            {"lm.facebook.com", "/l.php", "u"},
+            {"youtube.com", "/redirect", "q"},
+            {"out.reddit.com", "/", "url"},
+            {"t.umblr.com", "/redirect", "z"},
+            {"slack-redir.net", "/link", "url"},
+            {"away.vk.com", "/away.php", "to"},
+            {"steamcommunity.com", "/linkfilter", "url"}};
+
+    private final int capacity;
+    private final int mask;
+    // per slot data, allocated on first use and released on trim
+    private long[] linkHashes;
+    private long[] fingerprints;
+    private int[] feeds;
+    private int[] generations;
+    // chained buckets, one table for links and one per title band
+    private int[] linkHeads;
+    private int[] linkNext;
+    private int[][] bandHeads;
+    private int[][] bandNext;
+
+    private int size = 0;
+    private int cursor = 0;
+    private int generation = 0;
+    /*
+     * Whether the arrays are allocated, read without the monitor so that a
+     * budget check never waits for a parse
+     */
+    private volatile boolean allocated = false;
+
+    /**
+     * One parse of a feed: entries are added with it, so that parses of
+     * several feeds can run at the same time and only take the monitor for
+     * each entry.
+     */
+    public static class FeedParse {
+        private final int feed;
+        private final int generation;
+        private int collapsed = 0;
+
+        FeedParse(int feed, int generation) {
+            this.feed = feed;
+            this.generation = generation;
+        }
+
+        /**
+         * @return number of entries of this parse collapsed as duplicates
+         */
+        public int getCollapsed() {
+            return collapsed;
+        }
+    }
+
+    public DuplicateIndex(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+        int buckets = Integer.highestOneBit(capacity * 2 - 1) << 1;
+        this.mask = buckets - 1;
+    }
+
+    private void allocate() {
+        int buckets = mask + 1;
+        linkHashes = new long[capacity];
+        fingerprints = new long[capacity];
+        feeds = new int[capacity];
+        generations = new int[capacity];
+        linkHeads = newBuckets(buckets);
+        linkNext = new int[capacity];
+        bandHeads = new int[BANDS][];
+        bandNext = new int[BANDS][];
+        for (int b = 0; b < BANDS; b++) {
+            bandHeads[b] = newBuckets(buckets);
+            bandNext[b] = new int[capacity];
+        }
+        allocated = true;
+    }
+
+    private static int[] newBuckets(int buckets) {
+        int[] heads = new int[buckets];
+        Arrays.fill(heads, EMPTY);
+        return heads;
+    }
+
+    /**
+     * Starts a new parse of the given feed. Entries re-read from the same feed
+     * on a later refresh are not reported as duplicates of themselves.
+     *
+     * @param feedUrl url of the feed about to be parsed
+     * @return the parse to add the entries of the feed with
+     */
+    public synchronized FeedParse beginFeed(String feedUrl) {
+        return new FeedParse(feedUrl == null ? 0 : feedUrl.hashCode(),
+                ++generation);
+    }
+
+    /**
+     * Records the entry in the index unless it is already known.
+     *
+     * @param parse parse of the feed the entry was read from
+     * @param entry freshly parsed entry
+     * @return true if the entry was new, false if it duplicates an entry of
+     * another feed or an entry seen earlier in the same parse
+     */
+    public boolean add(FeedParse parse, Entry entry) {
+        // hashed before taking the monitor, only the lookup is shared
+        long linkHash = entry.getLink() == null ? 0 : entry.getItemHash();
+        String title = normalizeTitle(entry.getTitle());
+        long fingerprint = title.length() < MIN_TITLE_LENGTH ? 0
+                : simHash(title);
+        synchronized (this) {
+            if (add(parse, linkHash, fingerprint)) {
+                return true;
+            }
+        }
+        parse.collapsed++;
+        return false;
+    }
+
+    private boolean add(FeedParse parse, long linkHash, long fingerprint) {
+        if (linkHashes == null) {
+            allocate();
+        }
+        int match = linkHash != 0 ? findLink(linkHash) : EMPTY;
+        if (match == EMPTY && fingerprint != 0) {
+            match = findTitle(fingerprint);
+        }
+        if (match != EMPTY) {
+            if (feeds[match] != parse.feed
+                    || generations[match] == parse.generation) {
+                return false;
+            }
+            // the same item re-read on a later refresh of its own feed
+            generations[match] = parse.generation;
+            return true;
+        }
+        if (linkHash != 0 || fingerprint != 0) {
+            // an entry with neither key can never be matched
+            insert(parse, linkHash, fingerprint);
+        }
+        return true;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return heap used by the index once allocated
+     */
+    public long estimatedBytes() {
+        long slots = (long) capacity * (8 + 8 + 4 + 4 + 4 + 4 * BANDS);
+        long buckets = (long) (mask + 1) * 4 * (1 + BANDS);
+        return slots + buckets;
+    }
+
+    @Override
+    public long sizeBytes() {
+        return allocated ? estimatedBytes() : 0;
+    }
+
+    @Override
+    public void spill() {
+        // only speeds up parsing, nothing worth keeping
+    }
+
+    /**
+     * The index is all or nothing: any budget below its size releases the
+     * arrays, duplicates are then only detected again for new entries.
+     */
+    @Override
+    public synchronized void trimToBytes(long bytes) {
+        if (bytes < sizeBytes()) {
+            allocated = false;
+            linkHashes = null;
+            fingerprints = null;
+            feeds = null;
+            generations = null;
+            linkHeads = null;
+            linkNext = null;
+            bandHeads = null;
+            bandNext = null;
+            size = 0;
+            cursor = 0;
+        }
+    }
+
+    private int findLink(long linkHash) {
+        for (int slot = linkHeads[bucket(linkHash)]; slot != EMPTY; slot = linkNext[slot]) {
+            if (linkHashes[slot] == linkHash) {
+                return slot;
+            }
+        }
+        return EMPTY;
+    }
+
+    private int findTitle(long fingerprint) {
+        for (int b = 0; b < BANDS; b++) {
+            long band = band(fingerprint, b);
+            for (int slot = bandHeads[b][bucket(band)]; slot != EMPTY; slot = bandNext[b][slot]) {
+                long other = fingerprints[slot];
+                if (other != 0 && band(other, b) == band
+                        && Long.bitCount(other ^ fingerprint) <= MAX_DISTANCE) {
+                    return slot;
+                }
+            }
+        }
+        return EMPTY;
+    }
+
+    private void insert(FeedParse parse, long linkHash, long fingerprint) {
+        int slot = cursor;
+        if (size == capacity) {
+            unlink(slot);
+        } else {
+            size++;
+        }
+        cursor = (cursor + 1) % capacity;
+
+        linkHashes[slot] = linkHash;
+        fingerprints[slot] = fingerprint;
+        feeds[slot] = parse.feed;
+        generations[slot] = parse.generation;
+        // zero keys are never looked up: chaining them would make one
+        // bucket as long as the index, walked on every eviction
+        if (linkHash != 0) {
+            int bucket = bucket(linkHash);
+            linkNext[slot] = linkHeads[bucket];
+            linkHeads[bucket] = slot;
+        }
+        if (fingerprint != 0) {
+            for (int b = 0; b < BANDS; b++) {
+                int bucket = bucket(band(fingerprint, b));
+                bandNext[b][slot] = bandHeads[b][bucket];
+                bandHeads[b][bucket] = slot;
+            }
+        }
+    }
+
+    private void unlink(int slot) {
+        if (linkHashes[slot] != 0) {
+            remove(linkHeads, linkNext, bucket(linkHashes[slot]), slot);
+        }
+        if (fingerprints[slot] != 0) {
+            for (int b = 0; b < BANDS; b++) {
+                remove(bandHeads[b], bandNext[b],
+                        bucket(band(fingerprints[slot], b)), slot);
+            }
+        }
+    }
+
+    private static void remove(int[] heads, int[] next, int bucket, int slot) {
+        if (heads[bucket] == slot) {
+            heads[bucket] = next[slot];
+            return;
+        }
+        for (int prev = heads[bucket]; prev != EMPTY; prev = next[prev]) {
+            if (next[prev] == slot) {
+                next[prev] = next[slot];
+                return;
+            }
+        }
+    }
+
+    private int bucket(long key) {
+        long mixed = key * 0x9e3779b97f4a7c15L;
+        return (int) (mixed >>> 32) & mask;
+    }
+
+    private static long band(long fingerprint, int b) {
+        return (fingerprint >>> (b * BAND_BITS)) & ((1L << BAND_BITS) - 1);
+    }
+
+    /**
+     * Reduces a link to the form shared by every copy of the same story:
+     * scheme, "www." prefix, default port, fragment, trailing slash and
+     * tracking parameters are dropped, the remaining query parameters are
+     * sorted and redirect wrappers are unwrapped.
+     *
+     * @param link link as found in the feed
+     * @return canonical form of the link, or the trimmed input if it cannot
+     * be parsed
+     */
+    static String canonicalize(String link) {
+        return canonicalize(link, 2);
+    }
+
+    private static String canonicalize(String link, int redirectsLeft) {
+        URL url;
+        try {
+            url = new URL(link.trim());
+        } catch (java.net.MalformedURLException e) {
+            return link.trim();
+        }
+        String host = url.getHost().toLowerCase(Locale.US);
+        if (host.startsWith("www.")) {
+            host = host.substring(4);
+        }
+        List<String> params = new ArrayList<String>();
+        String query = url.getQuery();
+        if (query != null) {
+            for (String param : query.split("&")) {
+                if (param.length() == 0) {
+                    continue;
+                }
+                int eq = param.indexOf('=');
+                String key = (eq < 0 ? param : param.substring(0, eq))
+                        .toLowerCase(Locale.US);
+                if (eq > 0 && redirectsLeft > 0
+                        && isRedirectParam(host, url.getPath(), key)) {
+                    String target = decode(param.substring(eq + 1));
+                    if (target.startsWith("http://")
+                            || target.startsWith("https://")) {
+                        return canonicalize(target, redirectsLeft - 1);
+                    }
+                }
+                if (!isTrackingParam(key)) {
+                    params.add(param);
+                }
+            }
+        }
+        Collections.sort(params);
+
+        StringBuilder sb = new StringBuilder(host);
+        int port = url.getPort();
+        if (port != -1 && port != url.getDefaultPort()) {
+            sb.append(':').append(port);
+        }
+        String path = url.getPath();
+        while (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        sb.append(path);
+        for (int i = 0; i < params.size(); i++) {
+            sb.append(i == 0 ? '?' : '&').append(params.get(i));
+        }
+        return sb.toString();
+    }
+
+    private static boolean isTrackingParam(String key) {
+        if (key.startsWith("utm_")) {
+            return true;
+        }
+        for (String tracking : TRACKING_PARAMS) {
+            if (tracking.equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isRedirectParam(String host, String path,
+                                           String key) {
+        for (String[] redirector : REDIRECTORS) {
+            if (redirector[0].equals(host) && path.startsWith(redirector[1])
+                    && redirector[2].equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return value;
+        } catch (IllegalArgumentException e) {
+            // malformed escape sequence, keep it as is
+            return value;
+        }
+    }
+
+    /**
+     * Lower cases the title and reduces every run of punctuation and white
+     * space to a single space.
+     */
+    static String normalizeTitle(String title) {
+        if (title == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(title.length());
+        boolean space = true;
+        for (int i = 0; i < title.length(); i++) {
+            char c = title.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                sb.append(Character.toLowerCase(c));
+                space = false;
+            } else if (!space) {
+                sb.append(' ');
+                space = true;
+            }
+        }
+        int length = sb.length();
+        if (length > 0 && sb.charAt(length - 1) == ' ') {
+            sb.setLength(length - 1);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Computes the 64 bit SimHash of the character trigrams of a normalized
+     * title. Titles differing by a word or some punctuation end up a few bits
+     * apart.
+     */
+    static long simHash(String title) {
+        int[] weights = new int[64];
+        for (int i = 0; i + 3 <= title.length(); i++) {
+            long h = FNV_OFFSET;
+            for (int j = i; j < i + 3; j++) {
+                h ^= title.charAt(j);
+                h *= FNV_PRIME;
+            }
+            for (int bit = 0; bit < 64; bit++) {
+                weights[bit] += ((h >>> bit) & 1) != 0 ? 1 : -1;
+            }
+        }
+        long fingerprint = 0;
+        for (int bit = 0; bit < 64; bit++) {
+            if (weights[bit] > 0) {
+                fingerprint |= 1L << bit;
+            }
+        }
+        return fingerprint;
+    }
+
+    /**
+     * 64 bit FNV-1a hash of a string; never returns 0 so that 0 can mean
+     * "no key".
+     */
+    static long hash64(String value) {
+        long h = FNV_OFFSET;
+        for (int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= FNV_PRIME;
+        }
+        return h == 0 ? 1 : h;
+    }
+}
@@ -16,8 +16,10 @@ package nl.adben.android.rssreader;
 
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Locale;
 
 /**
  * Encapsulates the RSS entry object
@@ -26,11 +28,26 @@ import java.util.Date;
  */
 public class Entry implements Comparable<Entry> {
     static SimpleDateFormat FORMATTER = new SimpleDateFormat(
-            "EEE, dd MMM yyyy HH:mm:ss Z");
+            "EEE, dd MMM yyyy HH:mm:ss Z", Locale.US);
     private String title;
     private URL link;
     private String description;
+    /*
+     * Plain text summary of the description, computed while parsing
+     */
+    private String summary;
+    /*
+     * Raw feed holding the description when it is decoded on demand, with
+     * the index of the description in it
+     */
+    private DescriptionStore.RawFeed rawFeed;
+    private int descriptionIndex = -1;
     private Date date;
+    private String feed;
+    /*
+     * Compact key of the entry, computed once from its canonical link
+     */
+    private long itemHash;
 
     public String getTitle() {
         return title;
@@ -46,7 +63,8 @@ public class Entry implements Comparable<Entry> {
 
     public void setLink(String link) {
         try {
-            this.link = new URL(link);
+            this.link = new URL(link.trim());
+            this.itemHash = 0;
         } catch (MalformedURLException e) {
             throw new RuntimeException(e);
         }
@@ -60,8 +78,102 @@ public class Entry implements Comparable<Entry> {
         this.description = description.trim();
     }
 
+    public String getSummary() {
+        return summary;
+    }
+
+    public void setSummary(String summary) {
+        this.summary = summary;
+    }
+
+    public synchronized DescriptionStore.RawFeed getRawFeed() {
+        return rawFeed;
+    }
+
+    public synchronized int getDescriptionIndex() {
+        return descriptionIndex;
+    }
+
+    /**
+     * Points the entry to its description in the raw feed instead of
+     * holding the text. Synchronized with the getters: the timeline moves
+     * the reference to a newer body while rows are being decoded.
+     *
+     * @param rawFeed body of the feed on disk
+     * @param index   index of the description element in the body
+     */
+    public synchronized void setDescriptionRef(DescriptionStore.RawFeed rawFeed, int index) {
+        this.rawFeed = rawFeed;
+        this.descriptionIndex = index;
+    }
+
     public String getDate() {
-        return FORMATTER.format(this.date);
+        if (date == null) {
+            return "";
+        }
+        synchronized (FORMATTER) {
+            return FORMATTER.format(this.date);
+        }
+    }
+
+    /**
+     * Sets the publication date from its RFC 822 representation; dates that
+     * cannot be parsed are left unknown.
+     *
+     * @param date pubDate as found in the feed
+     */
+    public void setDate(String date) {
+        try {
+            synchronized (FORMATTER) {
+                this.date = FORMATTER.parse(date.trim());
+            }
+        } catch (ParseException e) {
+            this.date = null;
+        }
+    }
+
+    /**
+     * @return publication time in milliseconds, 0 if unknown
+     */
+    public long getTime() {
+        return date == null ? 0 : date.getTime();
+    }
+
+    /**
+     * @param time publication time in milliseconds, 0 if unknown
+     */
+    void setTime(long time) {
+        this.date = time == 0 ? null : new Date(time);
+    }
+
+    /**
+     * @return url of the feed the entry was read from
+     */
+    public String getFeed() {
+        return feed;
+    }
+
+    public void setFeed(String feed) {
+        this.feed = feed;
+    }
+
+    /**
+     * Returns the 64 bit key identifying this entry across refreshes and
+     * feeds: the hash of its canonical link, or of its title when it has no
+     * link.
+     *
+     * @return item hash, never 0
+     */
+    public long getItemHash() {
+        if (itemHash == 0) {
+            if (link != null) {
+                itemHash = DuplicateIndex.hash64(DuplicateIndex
+                        .canonicalize(link.toString()));
+            } else {
+                itemHash = DuplicateIndex.hash64(title == null ? "" : title);
+            }
+        }
+        return itemHash;
     }
 
     public Entry copy() {
@@ -69,7 +181,12 @@ public class Entry implements Comparable<Entry> {
         copy.title = title;
         copy.link = link;
         copy.description = description;
+        copy.summary = summary;
+        copy.rawFeed = rawFeed;
+        copy.descriptionIndex = descriptionIndex;
         copy.date = date;
+        copy.feed = feed;
+        copy.itemHash = itemHash;
         return copy;
     }
 
@@ -137,7 +254,7 @@ public class Entry implements Comparable<Entry> {
     public int compareTo(Entry another) {
         if (another == null)
             return 1;
-        // sort descending, most recent first
-        return another.date.compareTo(date);
+        // sort descending, most recent first; entries without a date last
+        return TimelineEngine.NEWEST_FIRST.compare(this, another);
     }
 }
\ No newline at end of file
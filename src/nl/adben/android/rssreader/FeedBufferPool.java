@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2013
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package nl.adben.android.rssreader;
+
+import android.util.Xml;
+import org.xmlpull.v1.XmlPullParser;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per thread pool of the objects a feed download needs: one XmlPullParser
+ * and one growable byte buffer holding the response body.
+ * <p/>
+ * A refresh reads the whole response into the thread's buffer with large
+ * reads sized from the Content-Length, then parses it from memory. Both the
+ * parser and the buffer survive between feeds, so a many-feed refresh only
+ * allocates them once per worker thread.
+ * <p/>
+ * Every buffer is tracked through a weak reference, so the pool reports the
+ * bytes actually held and can release idle buffers of any thread at once. A
+ * buffer goes away by itself with its thread when a lane lets an idle
+ * thread time out.
+ */
+public final class FeedBufferPool {
+    static final int MIN_BUFFER = 8 * 1024;
+    static final int DEFAULT_BUFFER = 64 * 1024;
+    /*
+     * Buffers above this size that are in use during a trim are dropped on
+     * their thread's next read
+     */
+    static final int RETAINED_BUFFER = 256 * 1024;
+    static final int MAX_BODY = 16 * 1024 * 1024;
+
+    private static final AtomicInteger parsersCreated = new AtomicInteger();
+    private static final AtomicInteger buffersAllocated = new AtomicInteger();
+    private static final AtomicInteger bodiesRead = new AtomicInteger();
+    private static final AtomicLong bytesRead = new AtomicLong();
+    /*
+     * Buffers of the live threads, guarded by itself
+     */
+    private static final List<WeakReference<FeedBuffer>> LIVE = new ArrayList<WeakReference<FeedBuffer>>();
+    /*
+     * Bumped by trim(), each thread compares it on its next use
+     */
+    private static volatile int trimEpoch = 0;
+
+    private static final ThreadLocal<FeedBuffer> BUFFERS = new ThreadLocal<FeedBuffer>() {
+        @Override
+        protected FeedBuffer initialValue() {
+            FeedBuffer buffer = new FeedBuffer();
+            synchronized (LIVE) {
+                LIVE.add(new WeakReference<FeedBuffer>(buffer));
+            }
+            return buffer;
+        }
+    };
+
+    private FeedBufferPool() {
+    }
+
+    /**
+     * @return the pull parser of the calling thread
+     */
+    public static XmlPullParser parser() {
+        FeedBuffer buffer = BUFFERS.get();
+        if (buffer.parser == null) {
+            buffer.parser = Xml.newPullParser();
+            parsersCreated.incrementAndGet();
+        }
+        return buffer.parser;
+    }
+
+    /**
+     * Reads the stream to its end into the calling thread's buffer. The
+     * returned buffer is only valid until the next call on the same thread
+     * and must be released once the body has been consumed.
+     *
+     * @param in            response stream, not closed
+     * @param contentLength announced length of the body, -1 if unknown
+     * @return the filled buffer
+     * @throws IOException if the stream fails or the body exceeds
+     *                     {@link #MAX_BODY}
+     */
+    public static FeedBuffer read(InputStream in, int contentLength)
+            throws IOException {
+        FeedBuffer buffer = BUFFERS.get();
+        synchronized (buffer) {
+            buffer.busy = true;
+            if (buffer.epoch != trimEpoch) {
+                buffer.epoch = trimEpoch;
+                if (buffer.bytes != null
+                        && buffer.bytes.length > RETAINED_BUFFER) {
+                    buffer.bytes = null;
+                }
+            }
+        }
+        // a bogus Content-Length must not allocate more than a body may hold
+        int expected = contentLength > 0
+                ? (int) Math.min(contentLength + 1L, MAX_BODY) : DEFAULT_BUFFER;
+        buffer.length = 0;
+        try {
+            buffer.ensureCapacity(Math.max(expected, MIN_BUFFER));
+            int count;
+            while ((count = in.read(buffer.bytes, buffer.length,
+                    buffer.bytes.length - buffer.length)) != -1) {
+                buffer.length += count;
+                if (buffer.length == buffer.bytes.length) {
+                    if (buffer.length >= MAX_BODY) {
+                        throw new IOException("Feed larger than " + MAX_BODY
+                                + " bytes");
+                    }
+                    buffer.ensureCapacity(Math.min(buffer.length * 2,
+                            MAX_BODY));
+                }
+            }
+        } catch (IOException e) {
+            buffer.release();
+            throw e;
+        }
+        bodiesRead.incrementAndGet();
+        bytesRead.addAndGet(buffer.length);
+        return buffer;
+    }
+
+    /**
+     * Releases idle buffers until the pool holds at most the given number of
+     * bytes. Buffers in use are left to their thread, which drops them on
+     * its next read if they grew above {@link #RETAINED_BUFFER}.
+     *
+     * @param bytes bytes the pool may keep
+     */
+    public static void trimToBytes(long bytes) {
+        long retained = retainedBytes();
+        boolean busyLeft = false;
+        for (FeedBuffer buffer : liveBuffers()) {
+            if (retained <= bytes) {
+                break;
+            }
+            synchronized (buffer) {
+                if (buffer.bytes == null) {
+                    continue;
+                }
+                if (buffer.busy) {
+                    busyLeft = true;
+                } else {
+                    retained -= buffer.bytes.length;
+                    buffer.bytes = null;
+                }
+            }
+        }
+        if (busyLeft) {
+            trimEpoch++;
+        }
+    }
+
+    /**
+     * @return bytes held by the buffers of the live threads
+     */
+    public static long retainedBytes() {
+        long retained = 0;
+        for (FeedBuffer buffer : liveBuffers()) {
+            synchronized (buffer) {
+                retained += buffer.bytes == null ? 0 : buffer.bytes.length;
+            }
+        }
+        return retained;
+    }
+
+    /**
+     * @return the buffers still referenced by their thread, forgetting the
+     * collected ones
+     */
+    private static List<FeedBuffer> liveBuffers() {
+        List<FeedBuffer> buffers = new ArrayList<FeedBuffer>();
+        synchronized (LIVE) {
+            Iterator<WeakReference<FeedBuffer>> it = LIVE.iterator();
+            while (it.hasNext()) {
+                FeedBuffer buffer = it.next().get();
+                if (buffer == null) {
+                    it.remove();
+                } else {
+                    buffers.add(buffer);
+                }
+            }
+        }
+        return buffers;
+    }
+
+    /**
+     * @return allocation counters since the process started
+     */
+    public static String stats() {
+        return "bodies=" + bodiesRead.get() + " bytes=" + bytesRead.get()
+                + " parsersCreated=" + parsersCreated.get()
+                + " buffersAllocated=" + buffersAllocated.get();
+    }
+
+    /**
+     * Response body of the last feed read on a thread
+     */
+    public static final class FeedBuffer {
+        private XmlPullParser parser;
+        private byte[] bytes;
+        private int length;
+        private int epoch = trimEpoch;
+        /*
+         * Set from read() until release(), a trim leaves the buffer alone
+         */
+        private boolean busy = false;
+
+        private synchronized void ensureCapacity(int capacity) {
+            if (bytes == null || bytes.length < capacity) {
+                byte[] grown = new byte[capacity];
+                if (bytes != null && length > 0) {
+                    System.arraycopy(bytes, 0, grown, 0, length);
+                }
+                bytes = grown;
+                buffersAllocated.incrementAndGet();
+            }
+        }
+
+        /**
+         * Hands the buffer back to the pool once the body has been
+         * consumed; an idle buffer may then be released by a trim.
+         */
+        public synchronized void release() {
+            busy = false;
+        }
+
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public InputStream newInputStream() {
+            return new ByteArrayInputStream(bytes, 0, length);
+        }
+    }
+}
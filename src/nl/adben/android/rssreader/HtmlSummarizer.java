@@ -0,0 +1,513 @@
+/*
+ * Copyright (C) 2013
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package nl.adben.android.rssreader;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Turns the HTML of a feed description into a short plain text summary in a
+ * single pass: tags are dropped, script and style content skipped, entities
+ * decoded and white space collapsed. Scanning stops as soon as the summary
+ * reaches its limit, so long descriptions cost no more than short ones.
+ * <p/>
+ * Unlike Html.fromHtml no span tree is built; the result is meant to be
+ * computed once at parse time and stored on the entry.
+ */
+public class HtmlSummarizer {
+    public static final int DEFAULT_LIMIT = 280;
+    static final char ELLIPSIS = '\u2026';
+    /*
+     * How far back a truncated summary looks for a word boundary
+     */
+    private static final int WORD_BOUNDARY_WINDOW = 20;
+    /*
+     * Longest entity, '&' and ';' included, e.g. &thetasym; or &#x10ffff;
+     */
+    private static final int MAX_ENTITY_LENGTH = 11;
+    private static final Map<String, Integer> ENTITIES = new HashMap<String, Integer>();
+
+    /*
+     * The 252 character entities of HTML 4.01, by code point
+     */
+    static {
+        ENTITIES.put("quot", 0x0022);
+        ENTITIES.put("amp", 0x0026);
+        ENTITIES.put("lt", 0x003c);
+        ENTITIES.put("gt", 0x003e);
+        ENTITIES.put("nbsp", 0x00a0);
+        ENTITIES.put("iexcl", 0x00a1);
+        ENTITIES.put("cent", 0x00a2);
+        ENTITIES.put("pound", 0x00a3);
+        ENTITIES.put("curren", 0x00a4);
+        ENTITIES.put("yen", 0x00a5);
+        ENTITIES.put("brvbar", 0x00a6);
+        ENTITIES.put("sect", 0x00a7);
+        ENTITIES.put("uml", 0x00a8);
+        ENTITIES.put("copy", 0x00a9);
+        ENTITIES.put("ordf", 0x00aa);
+        ENTITIES.put("laquo", 0x00ab);
+        ENTITIES.put("not", 0x00ac);
+        ENTITIES.put("shy", 0x00ad);
+        ENTITIES.put("reg", 0x00ae);
+        ENTITIES.put("macr", 0x00af);
+        ENTITIES.put("deg", 0x00b0);
+        ENTITIES.put("plusmn", 0x00b1);
+        ENTITIES.put("sup2", 0x00b2);
+        ENTITIES.put("sup3", 0x00b3);
+        ENTITIES.put("acute", 0x00b4);
+        ENTITIES.put("micro", 0x00b5);
+        ENTITIES.put("para", 0x00b6);
+        ENTITIES.put("middot", 0x00b7);
+        ENTITIES.put("cedil", 0x00b8);
+        ENTITIES.put("sup1", 0x00b9);
+        ENTITIES.put("ordm", 0x00ba);
+        ENTITIES.put("raquo", 0x00bb);
+        ENTITIES.put("frac14", 0x00bc);
+        ENTITIES.put("frac12", 0x00bd);
+        ENTITIES.put("frac34", 0x00be);
+        ENTITIES.put("iquest", 0x00bf);
+        ENTITIES.put("Agrave", 0x00c0);
+        ENTITIES.put("Aacute", 0x00c1);
+        ENTITIES.put("Acirc", 0x00c2);
+        ENTITIES.put("Atilde", 0x00c3);
+        ENTITIES.put("Auml", 0x00c4);
+        ENTITIES.put("Aring", 0x00c5);
+        ENTITIES.put("AElig", 0x00c6);
+        ENTITIES.put("Ccedil", 0x00c7);
+        ENTITIES.put("Egrave", 0x00c8);
+        ENTITIES.put("Eacute", 0x00c9);
+        ENTITIES.put("Ecirc", 0x00ca);
+        ENTITIES.put("Euml", 0x00cb);
+        ENTITIES.put("Igrave", 0x00cc);
+        ENTITIES.put("Iacute", 0x00cd);
+        ENTITIES.put("Icirc", 0x00ce);
+        ENTITIES.put("Iuml", 0x00cf);
+        ENTITIES.put("ETH", 0x00d0);
+        ENTITIES.put("Ntilde", 0x00d1);
+        ENTITIES.put("Ograve", 0x00d2);
+        ENTITIES.put("Oacute", 0x00d3);
+        ENTITIES.put("Ocirc", 0x00d4);
+        ENTITIES.put("Otilde", 0x00d5);
+        ENTITIES.put("Ouml", 0x00d6);
+        ENTITIES.put("times", 0x00d7);
+        ENTITIES.put("Oslash", 0x00d8);
+        ENTITIES.put("Ugrave", 0x00d9);
+        ENTITIES.put("Uacute", 0x00da);
+        ENTITIES.put("Ucirc", 0x00db);
+        ENTITIES.put("Uuml", 0x00dc);
+        ENTITIES.put("Yacute", 0x00dd);
+        ENTITIES.put("THORN", 0x00de);
+        ENTITIES.put("szlig", 0x00df);
+        ENTITIES.put("agrave", 0x00e0);
+        ENTITIES.put("aacute", 0x00e1);
+        ENTITIES.put("acirc", 0x00e2);
+        ENTITIES.put("atilde", 0x00e3);
+        ENTITIES.put("auml", 0x00e4);
+        ENTITIES.put("aring", 0x00e5);
+        ENTITIES.put("aelig", 0x00e6);
+        ENTITIES.put("ccedil", 0x00e7);
+        ENTITIES.put("egrave", 0x00e8);
+        ENTITIES.put("eacute", 0x00e9);
+        ENTITIES.put("ecirc", 0x00ea);
+        ENTITIES.put("euml", 0x00eb);
+        ENTITIES.put("igrave", 0x00ec);
+        ENTITIES.put("iacute", 0x00ed);
+        ENTITIES.put("icirc", 0x00ee);
+        ENTITIES.put("iuml", 0x00ef);
+        ENTITIES.put("eth", 0x00f0);
+        ENTITIES.put("ntilde", 0x00f1);
+        ENTITIES.put("ograve", 0x00f2);
+        ENTITIES.put("oacute", 0x00f3);
+        ENTITIES.put("ocirc", 0x00f4);
+        ENTITIES.put("otilde", 0x00f5);
+        ENTITIES.put("ouml", 0x00f6);
+        ENTITIES.put("divide", 0x00f7);
+        ENTITIES.put("oslash", 0x00f8);
+        ENTITIES.put("ugrave", 0x00f9);
+        ENTITIES.put("uacute", 0x00fa);
+        ENTITIES.put("ucirc", 0x00fb);
+        ENTITIES.put("uuml", 0x00fc);
+        ENTITIES.put("yacute", 0x00fd);
+        ENTITIES.put("thorn", 0x00fe);
+        ENTITIES.put("yuml", 0x00ff);
+        ENTITIES.put("OElig", 0x0152);
+        ENTITIES.put("oelig", 0x0153);
+        ENTITIES.put("Scaron", 0x0160);
+        ENTITIES.put("scaron", 0x0161);
+        ENTITIES.put("Yuml", 0x0178);
+        ENTITIES.put("fnof", 0x0192);
+        ENTITIES.put("circ", 0x02c6);
+        ENTITIES.put("tilde", 0x02dc);
+        ENTITIES.put("Alpha", 0x0391);
+        ENTITIES.put("Beta", 0x0392);
+        ENTITIES.put("Gamma", 0x0393);
+        ENTITIES.put("Delta", 0x0394);
+        ENTITIES.put("Epsilon", 0x0395);
+        ENTITIES.put("Zeta", 0x0396);
+        ENTITIES.put("Eta", 0x0397);
+        ENTITIES.put("Theta", 0x0398);
+        ENTITIES.put("Iota", 0x0399);
+        ENTITIES.put("Kappa", 0x039a);
+        ENTITIES.put("Lambda", 0x039b);
+        ENTITIES.put("Mu", 0x039c);
+        ENTITIES.put("Nu", 0x039d);
+        ENTITIES.put("Xi", 0x039e);
+        ENTITIES.put("Omicron", 0x039f);
+        ENTITIES.put("Pi", 0x03a0);
+        ENTITIES.put("Rho", 0x03a1);
+        ENTITIES.put("Sigma", 0x03a3);
+        ENTITIES.put("Tau", 0x03a4);
+        ENTITIES.put("Upsilon", 0x03a5);
+        ENTITIES.put("Phi", 0x03a6);
+        ENTITIES.put("Chi", 0x03a7);
+        ENTITIES.put("Psi", 0x03a8);
+        ENTITIES.put("Omega", 0x03a9);
+        ENTITIES.put("alpha", 0x03b1);
+        ENTITIES.put("beta", 0x03b2);
+        ENTITIES.put("gamma", 0x03b3);
+        ENTITIES.put("delta", 0x03b4);
+        ENTITIES.put("epsilon", 0x03b5);
+        ENTITIES.put("zeta", 0x03b6);
+        ENTITIES.put("eta", 0x03b7);
+        ENTITIES.put("theta", 0x03b8);
+        ENTITIES.put("iota", 0x03b9);
+        ENTITIES.put("kappa", 0x03ba);
+        ENTITIES.put("lambda", 0x03bb);
+        ENTITIES.put("mu", 0x03bc);
+        ENTITIES.put("nu", 0x03bd);
+        ENTITIES.put("xi", 0x03be);
+        ENTITIES.put("omicron", 0x03bf);
+        ENTITIES.put("pi", 0x03c0);
+        ENTITIES.put("rho", 0x03c1);
+        ENTITIES.put("sigmaf", 0x03c2);
+        ENTITIES.put("sigma", 0x03c3);
+        ENTITIES.put("tau", 0x03c4);
+        ENTITIES.put("upsilon", 0x03c5);
+        ENTITIES.put("phi", 0x03c6);
+        ENTITIES.put("chi", 0x03c7);
+        ENTITIES.put("psi", 0x03c8);
+        ENTITIES.put("omega", 0x03c9);
+        ENTITIES.put("thetasym", 0x03d1);
+        ENTITIES.put("upsih", 0x03d2);
+        ENTITIES.put("piv", 0x03d6);
+        ENTITIES.put("ensp", 0x2002);
+        ENTITIES.put("emsp", 0x2003);
+        ENTITIES.put("thinsp", 0x2009);
+        ENTITIES.put("zwnj", 0x200c);
+        ENTITIES.put("zwj", 0x200d);
+        ENTITIES.put("lrm", 0x200e);
+        ENTITIES.put("rlm", 0x200f);
+        ENTITIES.put("ndash", 0x2013);
+        ENTITIES.put("mdash", 0x2014);
+        ENTITIES.put("lsquo", 0x2018);
+        ENTITIES.put("rsquo", 0x2019);
+        ENTITIES.put("sbquo", 0x201a);
+        ENTITIES.put("ldquo", 0x201c);
+        ENTITIES.put("rdquo", 0x201d);
+        ENTITIES.put("bdquo", 0x201e);
+        ENTITIES.put("dagger", 0x2020);
+        ENTITIES.put("Dagger", 0x2021);
+        ENTITIES.put("bull", 0x2022);
+        ENTITIES.put("hellip", 0x2026);
+        ENTITIES.put("permil", 0x2030);
+        ENTITIES.put("prime", 0x2032);
+        ENTITIES.put("Prime", 0x2033);
+        ENTITIES.put("lsaquo", 0x2039);
+        ENTITIES.put("rsaquo", 0x203a);
+        ENTITIES.put("oline", 0x203e);
+        ENTITIES.put("frasl", 0x2044);
+        ENTITIES.put("euro", 0x20ac);
+        ENTITIES.put("image", 0x2111);
+        ENTITIES.put("weierp", 0x2118);
+        ENTITIES.put("real", 0x211c);
+        ENTITIES.put("trade", 0x2122);
+        ENTITIES.put("alefsym", 0x2135);
+        ENTITIES.put("larr", 0x2190);
+        ENTITIES.put("uarr", 0x2191);
+        ENTITIES.put("rarr", 0x2192);
+        ENTITIES.put("darr", 0x2193);
+        ENTITIES.put("harr", 0x2194);
+        ENTITIES.put("crarr", 0x21b5);
+        ENTITIES.put("lArr", 0x21d0);
+        ENTITIES.put("uArr", 0x21d1);
+        ENTITIES.put("rArr", 0x21d2);
+        ENTITIES.put("dArr", 0x21d3);
+        ENTITIES.put("hArr", 0x21d4);
+        ENTITIES.put("forall", 0x2200);
+        ENTITIES.put("part", 0x2202);
+        ENTITIES.put("exist", 0x2203);
+        ENTITIES.put("empty", 0x2205);
+        ENTITIES.put("nabla", 0x2207);
+        ENTITIES.put("isin", 0x2208);
+        ENTITIES.put("notin", 0x2209);
+        ENTITIES.put("ni", 0x220b);
+        ENTITIES.put("prod", 0x220f);
+        ENTITIES.put("sum", 0x2211);
+        ENTITIES.put("minus", 0x2212);
+        ENTITIES.put("lowast", 0x2217);
+        ENTITIES.put("radic", 0x221a);
+        ENTITIES.put("prop", 0x221d);
+        ENTITIES.put("infin", 0x221e);
+        ENTITIES.put("ang", 0x2220);
+        ENTITIES.put("and", 0x2227);
+        ENTITIES.put("or", 0x2228);
+        ENTITIES.put("cap", 0x2229);
+        ENTITIES.put("cup", 0x222a);
+        ENTITIES.put("int", 0x222b);
+        ENTITIES.put("there4", 0x2234);
+        ENTITIES.put("sim", 0x223c);
+        ENTITIES.put("cong", 0x2245);
+        ENTITIES.put("asymp", 0x2248);
+        ENTITIES.put("ne", 0x2260);
+        ENTITIES.put("equiv", 0x2261);
+        ENTITIES.put("le", 0x2264);
+        ENTITIES.put("ge", 0x2265);
+        ENTITIES.put("sub", 0x2282);
+        ENTITIES.put("sup", 0x2283);
+        ENTITIES.put("nsub", 0x2284);
+        ENTITIES.put("sube", 0x2286);
+        ENTITIES.put("supe", 0x2287);
+        ENTITIES.put("oplus", 0x2295);
+        ENTITIES.put("otimes", 0x2297);
+        ENTITIES.put("perp", 0x22a5);
+        ENTITIES.put("sdot", 0x22c5);
+        ENTITIES.put("lceil", 0x2308);
+        ENTITIES.put("rceil", 0x2309);
+        ENTITIES.put("lfloor", 0x230a);
+        ENTITIES.put("rfloor", 0x230b);
+        ENTITIES.put("lang", 0x2329);
+        ENTITIES.put("rang", 0x232a);
+        ENTITIES.put("loz", 0x25ca);
+        ENTITIES.put("spades", 0x2660);
+        ENTITIES.put("clubs", 0x2663);
+        ENTITIES.put("hearts", 0x2665);
+        ENTITIES.put("diams", 0x2666);
+        // XML, not HTML 4, but common in feeds
+        ENTITIES.put("apos", 0x0027);
+    }
+
+    private final int limit;
+    private final StringBuilder out = new StringBuilder();
+
+    /**
+     * @param limit maximum number of characters of a summary, ellipsis
+     *              included
+     */
+    public HtmlSummarizer(int limit) {
+        this.limit = Math.max(limit, 1);
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Not thread safe: the output buffer is reused between calls.
+     *
+     * @param html HTML fragment, may be null
+     * @return plain text of at most {@link #getLimit()} characters
+     */
+    public String summarize(String html) {
+        if (html == null) {
+            return "";
+        }
+        out.setLength(0);
+        // a pending space is only written before the next visible character
+        boolean space = false;
+        int length = html.length();
+        int i = 0;
+        while (i < length && out.length() <= limit) {
+            char c = html.charAt(i);
+            if (c == '<' && i + 1 < length && isTagStart(html.charAt(i + 1))) {
+                boolean closing = html.charAt(i + 1) == '/';
+                String name = tagName(html, closing ? i + 2 : i + 1);
+                space |= isBreakingTag(name);
+                i = skipTag(html, i, closing ? "" : name);
+            } else if (c == '&') {
+                int semicolon = semicolonAfter(html, i);
+                int decoded = semicolon > i + 1
+                        ? decode(html, i + 1, semicolon) : 0;
+                if (decoded == 0) {
+                    space = append(c, space);
+                    i++;
+                } else {
+                    space = appendCodePoint(decoded, space);
+                    i = semicolon + 1;
+                }
+            } else {
+                space = append(c, space);
+                i++;
+            }
+        }
+        if (out.length() > limit) {
+            truncate();
+        }
+        return out.toString();
+    }
+
+    /**
+     * Appends a character collapsing white space.
+     *
+     * @return the new pending space state
+     */
+    private boolean append(char c, boolean space) {
+        if (Character.isWhitespace(c) || c == '\u00a0') {
+            return true;
+        }
+        if (space && out.length() > 0) {
+            out.append(' ');
+        }
+        out.append(c);
+        return false;
+    }
+
+    /**
+     * Appends a decoded entity, which may need a surrogate pair.
+     *
+     * @return the new pending space state
+     */
+    private boolean appendCodePoint(int codePoint, boolean space) {
+        if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+            return append((char) codePoint, space);
+        }
+        if (space && out.length() > 0) {
+            out.append(' ');
+        }
+        out.append(Character.toChars(codePoint));
+        return false;
+    }
+
+    private void truncate() {
+        int cut = limit - 1;
+        for (int i = cut; i > cut - WORD_BOUNDARY_WINDOW && i > 0; i--) {
+            if (out.charAt(i) == ' ') {
+                cut = i;
+                break;
+            }
+        }
+        if (cut > 0 && Character.isHighSurrogate(out.charAt(cut - 1))) {
+            // never split a surrogate pair
+            cut--;
+        }
+        out.setLength(cut);
+        out.append(ELLIPSIS);
+    }
+
+    private static boolean isTagStart(char c) {
+        return Character.isLetter(c) || c == '/' || c == '!' || c == '?';
+    }
+
+    /**
+     * @return index just after the tag starting at {@code start}; for script
+     * and style, just after their closing tag
+     */
+    private static int skipTag(String html, int start, String name) {
+        if (html.startsWith("<!--", start)) {
+            int end = html.indexOf("-->", start + 4);
+            return end < 0 ? html.length() : end + 3;
+        }
+        int end = html.indexOf('>', start);
+        if (end < 0) {
+            return html.length();
+        }
+        if (name.equals("script") || name.equals("style")) {
+            int close = indexOfIgnoreCase(html, "</" + name, end);
+            if (close < 0) {
+                return html.length();
+            }
+            int closeEnd = html.indexOf('>', close);
+            return closeEnd < 0 ? html.length() : closeEnd + 1;
+        }
+        return end + 1;
+    }
+
+    private static String tagName(String html, int from) {
+        int end = from;
+        while (end < html.length() && Character.isLetterOrDigit(html.charAt(end))) {
+            end++;
+        }
+        return html.substring(from, end).toLowerCase(Locale.US);
+    }
+
+    /**
+     * @return whether the tag separates words, e.g. br, p or li
+     */
+    private static boolean isBreakingTag(String name) {
+        return name.equals("br") || name.equals("p") || name.equals("div")
+                || name.equals("li") || name.equals("tr") || name.equals("td")
+                || name.equals("img") || name.equals("hr")
+                || (name.length() == 2 && name.charAt(0) == 'h'
+                && Character.isDigit(name.charAt(1)));
+    }
+
+    private static int indexOfIgnoreCase(String html, String needle, int from) {
+        int last = html.length() - needle.length();
+        for (int i = from; i <= last; i++) {
+            if (html.regionMatches(true, i, needle, 0, needle.length())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Looks for the ';' ending the entity at {@code ampersand}, no further
+     * than the longest entity so a stray '&amp;' costs a few characters.
+     *
+     * @return index of the ';', -1 if there is none close enough
+     */
+    private static int semicolonAfter(String html, int ampersand) {
+        int end = Math.min(html.length(), ampersand + MAX_ENTITY_LENGTH);
+        for (int i = ampersand + 1; i < end; i++) {
+            char c = html.charAt(i);
+            if (c == ';') {
+                return i;
+            }
+            if (c == '&' || c == '<' || Character.isWhitespace(c)) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Decodes the entity between '&amp;' and ';'.
+     *
+     * @return the code point, 0 if the entity is unknown
+     */
+    private static int decode(String html, int start, int end) {
+        try {
+            if (html.charAt(start) == '#') {
+                int code;
+                if (html.charAt(start + 1) == 'x' || html.charAt(start + 1) == 'X') {
+                    code = Integer.parseInt(html.substring(start + 2, end), 16);
+                } else {
+                    code = Integer.parseInt(html.substring(start + 1, end));
+                }
+                return code > 0 && Character.isValidCodePoint(code)
+                        && (code < Character.MIN_SURROGATE
+                        || code > Character.MAX_SURROGATE) ? code : 0;
+            }
+        } catch (NumberFormatException e) {
+            return 0;
+        } catch (StringIndexOutOfBoundsException e) {
+            return 0;
+        }
+        Integer named = ENTITIES.get(html.substring(start, end));
+        return named == null ? 0 : named;
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2013
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package nl.adben.android.rssreader;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the read/unread and starred state of the entries, keyed by
+ * {@link Entry#getItemHash()}.
+ * <p/>
+ * Individual states live in two {@link LongHashSet}s. "Mark all read" does
+ * not touch them: every item gets an ingestion sequence, one increasing
+ * number per downloaded batch much like a row id, the first time it is
+ * downloaded. Marking a feed read stores the last sequence as the feed's
+ * watermark, and every item of the feed ingested up to it counts as read.
+ * The operation is constant time whatever the size of the history, and an
+ * item that first shows up later counts as unread whatever its publication
+ * date. The state is written to a single binary file in the application's
+ * files directory.
+ */
+public class ItemStateStore implements MemoryGovernor.Trimmable {
+    static final String FILE_NAME = "item_state.bin";
+    private static final int VERSION = 2;
+    /*
+     * Version 1 stored publication time watermarks, they are dropped
+     */
+    private static final int VERSION_TIME_WATERMARKS = 1;
+    private static final String TAG = "ItemStateStore";
+
+    private final File file;
+    /*
+     * Serializes load and save, so the file I/O never holds the monitor
+     * that getView and the click handlers take
+     */
+    private final Object ioLock = new Object();
+    private LongHashSet read = new LongHashSet();
+    private LongHashSet starred = new LongHashSet();
+    /*
+     * Ingestion sequence of every item downloaded so far
+     */
+    private LongIntHashMap ingested = new LongIntHashMap();
+    private int sequence = 0;
+    private final Map<String, Integer> readUpTo = new HashMap<String, Integer>();
+    private boolean loaded = false;
+    private boolean dirty = false;
+
+    public ItemStateStore(File directory) {
+        this.file = new File(directory, FILE_NAME);
+    }
+
+    public synchronized boolean isRead(Entry entry) {
+        if (read.contains(entry.getItemHash())) {
+            return true;
+        }
+        if (entry.getFeed() == null) {
+            return false;
+        }
+        Integer watermark = readUpTo.get(entry.getFeed());
+        return watermark != null
+                && ingested.get(entry.getItemHash(), Integer.MAX_VALUE) <= watermark;
+    }
+
+    /**
+     * Gives the items of a download that were never seen before the next
+     * ingestion sequence. Loads the state first, so that sequences keep
+     * increasing across processes; must be called off the UI thread.
+     *
+     * @param entries entries of one download
+     */
+    public void ingest(List<Entry> entries) {
+        load();
+        synchronized (this) {
+            int batch = sequence + 1;
+            boolean added = false;
+            for (Entry entry : entries) {
+                added |= ingested.putIfAbsent(entry.getItemHash(), batch);
+            }
+            if (added) {
+                sequence = batch;
+                dirty = true;
+            }
+        }
+    }
+
+    public synchronized boolean isStarred(Entry entry) {
+        return starred.contains(entry.getItemHash());
+    }
+
+    public synchronized void markRead(Entry entry) {
+        dirty |= read.add(entry.getItemHash());
+    }
+
+    /**
+     * @return the new starred state of the entry
+     */
+    public synchronized boolean toggleStarred(Entry entry) {
+        boolean nowStarred = starred.add(entry.getItemHash());
+        if (!nowStarred) {
+            starred.remove(entry.getItemHash());
+        }
+        dirty = true;
+        return nowStarred;
+    }
+
+    /**
+     * Marks every entry of the feed downloaded up to now as read in constant
+     * time.
+     *
+     * @param feedUrl feed to mark as read
+     */
+    public synchronized void markAllRead(String feedUrl) {
+        readUpTo.put(feedUrl, sequence);
+        dirty = true;
+    }
+
+    /**
+     * Reads the persisted state once; must be called off the UI thread. The
+     * file is read without holding the state's monitor; changes made in the
+     * meantime are merged into what was read.
+     */
+    public void load() {
+        synchronized (ioLock) {
+            synchronized (this) {
+                if (loaded) {
+                    return;
+                }
+            }
+            LongHashSet savedRead = new LongHashSet();
+            LongHashSet savedStarred = new LongHashSet();
+            LongIntHashMap savedIngested = new LongIntHashMap();
+            int savedSequence = 0;
+            Map<String, Integer> savedReadUpTo = new HashMap<String, Integer>();
+            DataInputStream in = null;
+            try {
+                if (file.exists()) {
+                    in = new DataInputStream(new BufferedInputStream(
+                            new FileInputStream(file)));
+                    int version = in.readInt();
+                    if (version == VERSION) {
+                        savedRead = LongHashSet.readFrom(in);
+                        savedStarred = LongHashSet.readFrom(in);
+                        savedSequence = in.readInt();
+                        savedIngested = LongIntHashMap.readFrom(in);
+                        int feeds = in.readInt();
+                        for (int i = 0; i < feeds; i++) {
+                            savedReadUpTo.put(in.readUTF(), in.readInt());
+                        }
+                    } else if (version == VERSION_TIME_WATERMARKS) {
+                        savedRead = LongHashSet.readFrom(in);
+                        savedStarred = LongHashSet.readFrom(in);
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(TAG, e.toString());
+            } finally {
+                closeQuietly(in);
+            }
+            synchronized (this) {
+                // before the load every entry shows unread and unstarred, so
+                // the changes made meanwhile can only add to the saved state
+                savedRead.addAll(read);
+                read = savedRead;
+                savedStarred.addAll(starred);
+                starred = savedStarred;
+                // nothing is ingested before the load: a feed marked read
+                // meanwhile covers everything that was saved
+                ingested = savedIngested;
+                sequence = savedSequence;
+                for (Map.Entry<String, Integer> watermark : readUpTo.entrySet()) {
+                    watermark.setValue(sequence);
+                }
+                for (Map.Entry<String, Integer> watermark
+                        : savedReadUpTo.entrySet()) {
+                    if (!readUpTo.containsKey(watermark.getKey())) {
+                        readUpTo.put(watermark.getKey(), watermark.getValue());
+                    }
+                }
+                loaded = true;
+            }
+        }
+    }
+
+    /**
+     * Writes the state if it changed since the last save; must be called off
+     * the UI thread. The state is copied under the monitor and written
+     * outside of it. Nothing is written before the state has been loaded,
+     * which would lose the saved history.
+     */
+    public void save() {
+        synchronized (ioLock) {
+            LongHashSet readCopy;
+            LongHashSet starredCopy;
+            LongIntHashMap ingestedCopy;
+            int sequenceCopy;
+            Map<String, Integer> readUpToCopy;
+            synchronized (this) {
+                if (!dirty || !loaded) {
+                    return;
+                }
+                readCopy = read.copy();
+                starredCopy = starred.copy();
+                ingestedCopy = ingested.copy();
+                sequenceCopy = sequence;
+                readUpToCopy = new HashMap<String, Integer>(readUpTo);
+                dirty = false;
+            }
+            File tmp = new File(file.getPath() + ".tmp");
+            DataOutputStream out = null;
+            boolean saved = false;
+            try {
+                out = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(tmp)));
+                out.writeInt(VERSION);
+                readCopy.writeTo(out);
+                starredCopy.writeTo(out);
+                out.writeInt(sequenceCopy);
+                ingestedCopy.writeTo(out);
+                out.writeInt(readUpToCopy.size());
+                for (Map.Entry<String, Integer> watermark
+                        : readUpToCopy.entrySet()) {
+                    out.writeUTF(watermark.getKey());
+                    out.writeInt(watermark.getValue());
+                }
+                out.close();
+                out = null;
+                saved = tmp.renameTo(file);
+            } catch (IOException e) {
+                Log.e(TAG, e.toString());
+            } finally {
+                closeQuietly(out);
+                if (!saved) {
+                    synchronized (this) {
+                        dirty = true;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return approximate heap used by the state
+     */
+    public synchronized long estimatedBytes() {
+        return read.estimatedBytes() + starred.estimatedBytes()
+                + ingested.estimatedBytes();
+    }
+
+    @Override
+    public long sizeBytes() {
+        return estimatedBytes();
+    }
+
+    @Override
+    public void spill() {
+        save();
+    }
+
+    /**
+     * The state is the only copy of what the user read and starred, it is
+     * never dropped; spilling keeps it safe if the process is killed.
+     */
+    @Override
+    public void trimToBytes(long bytes) {
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                Log.e(TAG, e.toString());
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2013
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package nl.adben.android.rssreader;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background executor of the reader, replacing the shared serial AsyncTask
+ * executor.
+ * <p/>
+ * Work is split in lanes, each with its own threads, concurrency limit and
+ * thread priority, so a refresh asked for by the user never queues behind
+ * persistence or prefetching. Prefetch work additionally waits while any
+ * user visible fetch is queued or running. Every lane keeps queue depth and
+ * wait time metrics, see {@link #metrics()}.
+ */
+public final class LaneExecutor {
+
+    /**
+     * Kinds of background work, in decreasing priority
+     */
+    public enum Lane {
+        /*
+         * Downloads and parsing the user is waiting for
+         */
+        FETCH(2, Process.THREAD_PRIORITY_DEFAULT),
+        /*
+         * Preparing content for rows about to be shown
+         */
+        RENDER(1, Process.THREAD_PRIORITY_DEFAULT),
+        /*
+         * Reading and writing local state
+         */
+        PERSIST(1, Process.THREAD_PRIORITY_BACKGROUND),
+        /*
+         * Speculative downloads nobody is waiting for
+         */
+        PREFETCH(1, Process.THREAD_PRIORITY_LOWEST);
+
+        final int concurrency;
+        final int threadPriority;
+
+        Lane(int concurrency, int threadPriority) {
+            this.concurrency = concurrency;
+            this.threadPriority = threadPriority;
+        }
+    }
+
+    private static final LaneState[] LANES = new LaneState[Lane.values().length];
+    /*
+     * Notified when the fetch lane becomes idle
+     */
+    private static final Object FETCH_IDLE = new Object();
+
+    static {
+        for (Lane lane : Lane.values()) {
+            LANES[lane.ordinal()] = new LaneState(lane);
+        }
+    }
+
+    private LaneExecutor() {
+    }
+
+    /**
+     * Queues the runnable on the lane.
+     *
+     * @return token skipping the runnable if cancelled before it starts
+     */
+    public static CancellationToken execute(Lane lane, Runnable runnable) {
+        CancellationToken token = new CancellationToken();
+        execute(lane, runnable, token);
+        return token;
+    }
+
+    static void execute(Lane lane, final Runnable runnable,
+                        final CancellationToken token) {
+        final LaneState state = LANES[lane.ordinal()];
+        final long queuedAt = SystemClock.elapsedRealtime();
+        state.pending.incrementAndGet();
+        state.submitted.incrementAndGet();
+        state.executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (state.lane == Lane.PREFETCH) {
+                        awaitFetchIdle(token);
+                    }
+                    long wait = SystemClock.elapsedRealtime() - queuedAt;
+                    state.totalWait.addAndGet(wait);
+                    state.recordMaxWait(wait);
+                    if (!token.isCancelled()) {
+                        runnable.run();
+                    } else {
+                        state.cancelled.incrementAndGet();
+                    }
+                } finally {
+                    state.completed.incrementAndGet();
+                    if (state.pending.decrementAndGet() == 0
+                            && state.lane == Lane.FETCH) {
+                        synchronized (FETCH_IDLE) {
+                            FETCH_IDLE.notifyAll();
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @return whether the lane has queued or running work
+     */
+    public static boolean isBusy(Lane lane) {
+        return LANES[lane.ordinal()].pending.get() > 0;
+    }
+
+    /**
+     * Blocks the calling prefetch thread while user visible fetches are
+     * queued or running.
+     */
+    static void awaitFetchIdle(CancellationToken token) {
+        synchronized (FETCH_IDLE) {
+            while (isBusy(Lane.FETCH) && !token.isCancelled()) {
+                try {
+                    FETCH_IDLE.wait(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return one line per lane with its queue depth, running tasks and wait
+     * times in milliseconds
+     */
+    public static String metrics() {
+        StringBuilder sb = new StringBuilder();
+        for (LaneState state : LANES) {
+            long completed = state.completed.get();
+            sb.append(state.lane.name());
+            sb.append(": queued=").append(state.executor.getQueue().size());
+            sb.append(" running=").append(state.executor.getActiveCount());
+            sb.append(" submitted=").append(state.submitted.get());
+            sb.append(" completed=").append(completed);
+            sb.append(" cancelled=").append(state.cancelled.get());
+            sb.append(" avgWait=").append(
+                    completed == 0 ? 0 : state.totalWait.get() / completed);
+            sb.append(" maxWait=").append(state.maxWait.get());
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Threads and counters of one lane
+     */
+    private static class LaneState {
+        final Lane lane;
+        final ThreadPoolExecutor executor;
+        final AtomicInteger pending = new AtomicInteger();
+        final AtomicLong submitted = new AtomicLong();
+        final AtomicLong completed = new AtomicLong();
+        final AtomicLong cancelled = new AtomicLong();
+        final AtomicLong totalWait = new AtomicLong();
+        final AtomicLong maxWait = new AtomicLong();
+
+        LaneState(final Lane lane) {
+            this.lane = lane;
+            executor = new ThreadPoolExecutor(lane.concurrency,
+                    lane.concurrency, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(lane.threadPriority);
+                            r.run();
+                        }
+                    }, "Lane-" + lane.name() + "-" + count.incrementAndGet());
+                }
+            });
+            executor.allowCoreThreadTimeOut(true);
+        }
+
+        void recordMaxWait(long wait) {
+            long max;
+            do {
+                max = maxWait.get();
+            } while (wait > max && !maxWait.compareAndSet(max, wait));
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2013
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package nl.adben.android.rssreader;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Background task run on a {@link LaneExecutor} lane whose result is
+ * delivered on the UI thread, in the shape of AsyncTask.
+ *
+ * @param <Result> type of the result of the background computation
+ */
+public abstract class LaneTask<Result> {
+    private static final Handler MAIN_THREAD = new Handler(
+            Looper.getMainLooper());
+    private final CancellationToken token = new CancellationToken();
+
+    /**
+     * Runs on a lane thread.
+     */
+    protected abstract Result doInBackground();
+
+    /**
+     * Runs on the UI thread with the result, unless the task was cancelled.
+     */
+    protected void onPostExecute(Result result) {
+    }
+
+    /**
+     * Runs on the UI thread after each {@link #publishProgress()}, unless the
+     * task was cancelled.
+     */
+    protected void onProgressUpdate() {
+    }
+
+    /**
+     * Called from {@link #doInBackground()} to have
+     * {@link #onProgressUpdate()} run on the UI thread.
+     */
+    protected final void publishProgress() {
+        MAIN_THREAD.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!isCancelled()) {
+                    onProgressUpdate();
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues the task on the lane.
+     *
+     * @return this task, to cancel it later
+     */
+    public final LaneTask<Result> execute(LaneExecutor.Lane lane) {
+        LaneExecutor.execute(lane, new Runnable() {
+            @Override
+            public void run() {
+                final Result result = doInBackground();
+                MAIN_THREAD.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!isCancelled()) {
+                            onPostExecute(result);
+                        }
+                    }
+                });
+            }
+        }, token);
+        return this;
+    }
+
+    /**
+     * Skips the task if it has not started and drops its result otherwise;
+     * a running task stops at its next {@link #isCancelled()} check.
+     */
+    public final void cancel() {
+        token.cancel();
+    }
+
+    public final boolean isCancelled() {
+        return token.isCancelled();
+    }
+
+    protected final CancellationToken getToken() {
+        return token;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2013
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package nl.adben.android.rssreader;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Set of primitive longs using open addressing with linear probing, 8 bytes
+ * per slot and no boxing. The value 0 marks an empty slot and cannot be
+ * stored; item hashes are never 0.
+ */
+public class LongHashSet {
+    private static final int MIN_CAPACITY = 16;
+    private long[] slots;
+    private int size = 0;
+
+    public LongHashSet() {
+        this(MIN_CAPACITY);
+    }
+
+    public LongHashSet(int expected) {
+        slots = new long[tableSize(expected)];
+    }
+
+    private static int tableSize(int expected) {
+        // keep the load factor at or below one half
+        int capacity = MIN_CAPACITY;
+        while (capacity < expected * 2) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    public boolean contains(long key) {
+        int mask = slots.length - 1;
+        for (int i = mix(key) & mask; slots[i] != 0; i = (i + 1) & mask) {
+            if (slots[i] == key) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param key value to add, not 0
+     * @return true if the set did not contain the key yet
+     */
+    public boolean add(long key) {
+        if (key == 0) {
+            throw new IllegalArgumentException("0 cannot be stored");
+        }
+        if ((size + 1) * 2 > slots.length) {
+            rehash(slots.length << 1);
+        }
+        int mask = slots.length - 1;
+        int i = mix(key) & mask;
+        for (; slots[i] != 0; i = (i + 1) & mask) {
+            if (slots[i] == key) {
+                return false;
+            }
+        }
+        slots[i] = key;
+        size++;
+        return true;
+    }
+
+    /**
+     * @return true if the key was present
+     */
+    public boolean remove(long key) {
+        int mask = slots.length - 1;
+        int i = mix(key) & mask;
+        for (; slots[i] != key; i = (i + 1) & mask) {
+            if (slots[i] == 0) {
+                return false;
+            }
+        }
+        // shift the following cluster back so probing never hits a hole
+        int hole = i;
+        for (int j = (hole + 1) & mask; slots[j] != 0; j = (j + 1) & mask) {
+            int home = mix(slots[j]) & mask;
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                slots[hole] = slots[j];
+                hole = j;
+            }
+        }
+        slots[hole] = 0;
+        size--;
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Adds every key of another set.
+     */
+    public void addAll(LongHashSet other) {
+        for (long key : other.slots) {
+            if (key != 0) {
+                add(key);
+            }
+        }
+    }
+
+    public LongHashSet copy() {
+        LongHashSet copy = new LongHashSet(0);
+        copy.slots = slots.clone();
+        copy.size = size;
+        return copy;
+    }
+
+    /**
+     * @return heap used by the slot table
+     */
+    public long estimatedBytes() {
+        return (long) slots.length * 8;
+    }
+
+    private void rehash(int capacity) {
+        long[] old = slots;
+        slots = new long[capacity];
+        int mask = capacity - 1;
+        for (long key : old) {
+            if (key != 0) {
+                int i = mix(key) & mask;
+                while (slots[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                slots[i] = key;
+            }
+        }
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(size);
+        for (long key : slots) {
+            if (key != 0) {
+                out.writeLong(key);
+            }
+        }
+    }
+
+    public static LongHashSet readFrom(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        LongHashSet set = new LongHashSet(count);
+        for (int i = 0; i < count; i++) {
+            set.add(in.readLong());
+        }
+        return set;
+    }
+}
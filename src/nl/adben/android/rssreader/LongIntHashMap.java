@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2013
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package nl.adben.android.rssreader;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Map from primitive longs to ints using open addressing with linear
+ * probing, 12 bytes per slot and no boxing. The key 0 marks an empty slot
+ * and cannot be stored; item hashes are never 0. Entries are never removed.
+ */
+public class LongIntHashMap {
+    private static final int MIN_CAPACITY = 16;
+    private long[] keys;
+    private int[] values;
+    private int size = 0;
+
+    public LongIntHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    public LongIntHashMap(int expected) {
+        int capacity = tableSize(expected);
+        keys = new long[capacity];
+        values = new int[capacity];
+    }
+
+    private static int tableSize(int expected) {
+        // keep the load factor at or below one half
+        int capacity = MIN_CAPACITY;
+        while (capacity < expected * 2) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * @return the value of the key, {@code missing} if it is absent
+     */
+    public int get(long key, int missing) {
+        int mask = keys.length - 1;
+        for (int i = mix(key) & mask; keys[i] != 0; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * @param key   key to add, not 0
+     * @param value value stored if the key is absent
+     * @return true if the map did not contain the key yet
+     */
+    public boolean putIfAbsent(long key, int value) {
+        if (key == 0) {
+            throw new IllegalArgumentException("0 cannot be stored");
+        }
+        if ((size + 1) * 2 > keys.length) {
+            rehash(keys.length << 1);
+        }
+        int mask = keys.length - 1;
+        int i = mix(key) & mask;
+        for (; keys[i] != 0; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return false;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        size++;
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Adds every key of another map that this one does not hold yet.
+     */
+    public void putAllAbsent(LongIntHashMap other) {
+        for (int i = 0; i < other.keys.length; i++) {
+            if (other.keys[i] != 0) {
+                putIfAbsent(other.keys[i], other.values[i]);
+            }
+        }
+    }
+
+    public LongIntHashMap copy() {
+        LongIntHashMap copy = new LongIntHashMap(0);
+        copy.keys = keys.clone();
+        copy.values = values.clone();
+        copy.size = size;
+        return copy;
+    }
+
+    /**
+     * @return heap used by the tables
+     */
+    public long estimatedBytes() {
+        return (long) keys.length * 12;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[capacity];
+        values = new int[capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != 0) {
+                int i = mix(oldKeys[j]) & mask;
+                while (keys[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(size);
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) {
+                out.writeLong(keys[i]);
+                out.writeInt(values[i]);
+            }
+        }
+    }
+
+    public static LongIntHashMap readFrom(DataInputStream in)
+            throws IOException {
+        int count = in.readInt();
+        LongIntHashMap map = new LongIntHashMap(count);
+        for (int i = 0; i < count; i++) {
+            map.putIfAbsent(in.readLong(), in.readInt());
+        }
+        return map;
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2013
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package nl.adben.android.rssreader;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Central owner of the in-memory caches of the reader.
+ * <p/>
+ * Caches register with a priority and report their size. The governor keeps
+ * their total under a budget derived from the memory class of the device
+ * and, when the system asks the app to trim memory, shrinks them in priority
+ * order (lowest first) to a target that depends on the trim level. Once the
+ * UI is hidden the caches are also asked to spill their state to disk.
+ * <p/>
+ * The governor is registered with the application context, so the caches
+ * are still trimmed while the process is cached without an activity.
+ */
+public class MemoryGovernor implements ComponentCallbacks2 {
+    /*
+     * Priorities, caches with a lower value are shrunk first
+     */
+    public static final int PRIORITY_DISPOSABLE = 0;
+    public static final int PRIORITY_REBUILDABLE = 10;
+    public static final int PRIORITY_USER_STATE = 20;
+    /*
+     * Share of the per app heap given to the caches
+     */
+    static final int BUDGET_DIVISOR = 8;
+    private static final String TAG = "MemoryGovernor";
+
+    private final long budget;
+    private final List<Registration> caches = new ArrayList<Registration>();
+
+    /**
+     * @param memoryClassMb per app heap limit as returned by
+     *                      ActivityManager.getMemoryClass()
+     */
+    public MemoryGovernor(int memoryClassMb) {
+        this.budget = (long) memoryClassMb * 1024 * 1024 / BUDGET_DIVISOR;
+    }
+
+    /**
+     * A cache whose memory can be reclaimed by the governor
+     */
+    public interface Trimmable {
+        /**
+         * @return approximate heap used by the cache
+         */
+        long sizeBytes();
+
+        /**
+         * Writes whatever cannot be rebuilt to disk; called off the UI thread
+         * when the app leaves the foreground or memory runs low.
+         */
+        void spill();
+
+        /**
+         * Drops entries until the cache uses at most the given number of
+         * bytes, as far as it can. Only data that is on disk or can be
+         * rebuilt may be dropped, spilling runs asynchronously.
+         */
+        void trimToBytes(long bytes);
+    }
+
+    public synchronized void register(String name, int priority,
+                                      Trimmable cache) {
+        caches.add(new Registration(name, priority, cache));
+        Collections.sort(caches, new Comparator<Registration>() {
+            @Override
+            public int compare(Registration lhs, Registration rhs) {
+                return lhs.priority < rhs.priority ? -1
+                        : (lhs.priority == rhs.priority ? 0 : 1);
+            }
+        });
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public synchronized long totalBytes() {
+        long total = 0;
+        for (Registration registration : caches) {
+            total += registration.cache.sizeBytes();
+        }
+        return total;
+    }
+
+    /**
+     * Shrinks the caches back under the budget, e.g. after a refresh grew
+     * them.
+     */
+    public void enforceBudget() {
+        shrinkTo(budget, false);
+    }
+
+    /**
+     * Reacts to ComponentCallbacks2.onTrimMemory.
+     *
+     * @param level trim level given by the system
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        long target;
+        boolean spill = true;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            target = 0;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            target = budget / 8;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            target = budget / 4;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            target = budget / 2;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            target = budget / 4;
+            spill = false;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            target = budget / 2;
+            spill = false;
+        } else {
+            target = budget * 3 / 4;
+            spill = false;
+        }
+        Log.d(TAG, "trim level " + level + ", shrinking " + totalBytes()
+                + " bytes to " + target);
+        shrinkTo(target, spill);
+    }
+
+    /**
+     * Reacts to onLowMemory, the system is about to kill background
+     * processes.
+     */
+    @Override
+    public void onLowMemory() {
+        shrinkTo(0, true);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration configuration) {
+        // the budget does not depend on the configuration
+    }
+
+    private void shrinkTo(long target, boolean spill) {
+        final List<Registration> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<Registration>(caches);
+        }
+        if (spill) {
+            spillAll(snapshot);
+        }
+        long total = 0;
+        for (Registration registration : snapshot) {
+            total += registration.cache.sizeBytes();
+        }
+        for (Registration registration : snapshot) {
+            if (total <= target) {
+                break;
+            }
+            long size = registration.cache.sizeBytes();
+            long keep = Math.max(0, size - (total - target));
+            registration.cache.trimToBytes(keep);
+            long after = registration.cache.sizeBytes();
+            total -= size - after;
+            Log.d(TAG, registration.name + ": " + size + " -> " + after
+                    + " bytes");
+        }
+    }
+
+    private static void spillAll(final List<Registration> snapshot) {
+        LaneExecutor.execute(LaneExecutor.Lane.PERSIST, new Runnable() {
+            @Override
+            public void run() {
+                for (Registration registration : snapshot) {
+                    registration.cache.spill();
+                }
+            }
+        });
+    }
+
+    private static class Registration {
+        final String name;
+        final int priority;
+        final Trimmable cache;
+
+        Registration(String name, int priority, Trimmable cache) {
+            this.name = name;
+            this.priority = priority;
+            this.cache = cache;
+        }
+    }
+}
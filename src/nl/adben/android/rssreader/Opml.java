@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2013
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package nl.adben.android.rssreader;
+
+import android.util.Xml;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads and writes subscription lists in the OPML format used by most feed
+ * readers.
+ */
+public final class Opml {
+    // names of the XML tags and attributes
+    static final String OPML = "opml";
+    static final String HEAD = "head";
+    static final String BODY = "body";
+    static final String OUTLINE = "outline";
+    static final String TYPE = "type";
+    static final String TEXT = "text";
+    static final String TITLE = "title";
+    static final String XML_URL = "xmlUrl";
+    static final String RSS = "rss";
+
+    private Opml() {
+    }
+
+    /**
+     * Collects every outline carrying an xmlUrl, whatever the folder it is
+     * nested in.
+     *
+     * @param in OPML document
+     * @return the feeds found
+     */
+    public static List<Subscription> read(InputStream in)
+            throws XmlPullParserException, IOException {
+        List<Subscription> subscriptions = new ArrayList<Subscription>();
+        XmlPullParser parser = Xml.newPullParser();
+        parser.setInput(in, null);
+        int eventType = parser.getEventType();
+        while (eventType != XmlPullParser.END_DOCUMENT) {
+            if (eventType == XmlPullParser.START_TAG
+                    && parser.getName().equalsIgnoreCase(OUTLINE)) {
+                String url = parser.getAttributeValue(null, XML_URL);
+                if (url != null && url.trim().length() > 0) {
+                    String title = parser.getAttributeValue(null, TITLE);
+                    if (title == null) {
+                        title = parser.getAttributeValue(null, TEXT);
+                    }
+                    subscriptions.add(new Subscription(url, title));
+                }
+            }
+            eventType = parser.next();
+        }
+        return subscriptions;
+    }
+
+    /**
+     * Writes the feeds as a flat OPML 2.0 document.
+     *
+     * @param subscriptions feeds to export
+     * @param out           destination, not closed
+     */
+    public static void write(List<Subscription> subscriptions, OutputStream out)
+            throws IOException {
+        XmlSerializer serializer = Xml.newSerializer();
+        serializer.setOutput(out, "UTF-8");
+        serializer.startDocument("UTF-8", null);
+        serializer.startTag(null, OPML).attribute(null, "version", "2.0");
+        serializer.startTag(null, HEAD).startTag(null, TITLE)
+                .text("Reader subscriptions").endTag(null, TITLE)
+                .endTag(null, HEAD);
+        serializer.startTag(null, BODY);
+        for (Subscription subscription : subscriptions) {
+            String title = subscription.toString();
+            serializer.startTag(null, OUTLINE)
+                    .attribute(null, TYPE, RSS)
+                    .attribute(null, TEXT, title)
+                    .attribute(null, TITLE, title)
+                    .attribute(null, XML_URL, subscription.getUrl())
+                    .endTag(null, OUTLINE);
+        }
+        serializer.endTag(null, BODY);
+        serializer.endTag(null, OPML);
+        serializer.endDocument();
+        serializer.flush();
+    }
+}
@@ -14,6 +14,7 @@
 
 package nl.adben.android.rssreader;
 
+import android.app.ActivityManager;
 import android.app.ListActivity;
 import android.content.ActivityNotFoundException;
 import android.content.Context;
@@ -21,14 +22,20 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.graphics.Color;
+import android.graphics.Typeface;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
-import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Debug;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
-import android.text.Html;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
 import android.text.method.ScrollingMovementMethod;
+import android.text.style.RelativeSizeSpan;
+import android.text.style.StyleSpan;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -37,18 +44,26 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 import android.widget.ArrayAdapter;
 import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Main Activity for the Rss Reader application.
@@ -60,7 +75,7 @@ import java.util.List;
  * <p/>
  * o Parses the rss feed using XMLPullParser.
  * <p/>
- * o Uses AsyncTask to download and process the XML feed.
+ * o Uses LaneExecutor background lanes to download and process the XML feed.
  * <p/>
  * o Monitors preferences and the device's network connection to determine
  * whether to refresh the TextView content.
@@ -72,13 +87,35 @@ public class RssReaderApp extends ListActivity {
     public static final String ANY = "Any";
     public static final String DEFAULT_URL = "http://news.ycombinator.com/rss";
     /*
-     * Whether there is a Wi-Fi connection.
+     * File read by the OPML import and written by the export, in the app's
+     * external files directory
      */
-    private static boolean wifiConnected = false;
+    public static final String OPML_FILE = "subscriptions.opml";
+    public static final String TRAFFIC_OFF = "off";
+    /*
+     * Number of entries shown by the combined timeline
+     */
+    public static final int TIMELINE_SIZE = 200;
+    /*
+     * Maximum number of feeds refreshed when the timeline opens
+     */
+    public static final int TIMELINE_FEEDS = 100;
+    /*
+     * Feeds of one host downloaded per refresh, the others wait for the next
+     */
+    public static final int FEEDS_PER_HOST = 4;
+    /*
+     * Feeds prefetched per refresh without Wi-Fi, to spare the data plan
+     */
+    public static final int PREFETCH_FEEDS_MOBILE = 10;
+    /*
+     * Whether there is a Wi-Fi connection, also read by the prefetch lane.
+     */
+    private static volatile boolean wifiConnected = false;
     /*
      * Whether there is a mobile connection.
      */
-    private static boolean mobileConnected = false;
+    private static volatile boolean mobileConnected = false;
     /*
      * Whether the display should be refreshed.
      */
@@ -86,7 +123,7 @@ public class RssReaderApp extends ListActivity {
     /*
      * The user's current network preference setting.
      */
-    private static String sPref = null;
+    private static volatile String sPref = null;
     /*
      * The user's current feed
      */
@@ -95,10 +132,74 @@ public class RssReaderApp extends ListActivity {
      * The user selects if he wants to render the description
      */
     private static boolean withDescription = false;
+    /*
+     * Maximum length of the summaries
+     */
+    private static int summaryLength = HtmlSummarizer.DEFAULT_LIMIT;
+    /*
+     * Whether descriptions stay on disk until their row is shown
+     */
+    private static boolean lazySummaries = true;
+    /*
+     * Whether feed responses are captured, replayed or left alone
+     */
+    private static TrafficArchive.Mode trafficMode = TrafficArchive.Mode.OFF;
+    /*
+     * Whether the combined timeline of every feed is shown instead of the
+     * selected feed
+     */
+    private static boolean timelineMode = false;
+    /*
+     * Stories already read from any feed, so copies from other feeds can be
+     * collapsed in the combined timeline
+     */
+    private static final DuplicateIndex duplicateIndex = new DuplicateIndex(
+            DuplicateIndex.DEFAULT_CAPACITY);
+    /*
+     * Shared by every download, the parser keeps no per feed state
+     */
+    private static final RssXmlPullParser rssParser = new RssXmlPullParser();
+    /*
+     * Read and starred state of the entries, loaded before the first parse
+     */
+    private static ItemStateStore itemStates = null;
+    /*
+     * Entries of every feed downloaded so far, merged into one timeline
+     */
+    private static TimelineEngine timeline = null;
+    /*
+     * The followed feeds, opened lazily off the UI thread
+     */
+    private static SubscriptionRegistry subscriptions = null;
+    /*
+     * Raw feeds on disk and the summaries decoded from them
+     */
+    private static DescriptionStore descriptionStore = null;
+    /*
+     * Captured feed responses, opened lazily off the UI thread
+     */
+    private static TrafficArchive trafficArchive = null;
+    /*
+     * Shrinks the caches above when the system runs low on memory
+     */
+    private static MemoryGovernor memoryGovernor = null;
     /*
      * The BroadcastReceiver that tracks network connectivity changes.
      */
-    private NetworkReceiver receiver = new NetworkReceiver();
+    private NetworkReceiver receiver = null;
+    /*
+     * Whether this activity has drawn its first frame, non critical startup
+     * work waits for it
+     */
+    private boolean firstFrameDrawn = false;
+    /*
+     * The refresh in progress, cancelled when a new one starts
+     */
+    private LaneTask<List<Entry>> refreshTask = null;
+    /*
+     * The prefetch queued or running, at most one at a time
+     */
+    private PrefetchTask prefetchTask = null;
     /*
      * Tag log
      */
@@ -139,25 +240,146 @@ public class RssReaderApp extends ListActivity {
         RssReaderApp.withDescription = withDescription;
     }
 
+    public static int getSummaryLength() {
+        return summaryLength;
+    }
+
+    public static void setSummaryLength(int summaryLength) {
+        RssReaderApp.summaryLength = summaryLength;
+    }
+
+    public static boolean isLazySummaries() {
+        return lazySummaries;
+    }
+
+    public static void setLazySummaries(boolean lazySummaries) {
+        RssReaderApp.lazySummaries = lazySummaries;
+    }
+
+    public static TrafficArchive.Mode getTrafficMode() {
+        return trafficMode;
+    }
+
+    public static void setTrafficMode(TrafficArchive.Mode trafficMode) {
+        RssReaderApp.trafficMode = trafficMode;
+    }
+
+    public static DuplicateIndex getDuplicateIndex() {
+        return duplicateIndex;
+    }
+
+    public static DescriptionStore getDescriptionStore() {
+        return descriptionStore;
+    }
+
+    public static ItemStateStore getItemStates() {
+        return itemStates;
+    }
+
+    public static synchronized SubscriptionRegistry getSubscriptions(
+            Context context) {
+        if (subscriptions == null) {
+            subscriptions = new SubscriptionRegistry(context);
+        }
+        return subscriptions;
+    }
+
+    public static synchronized TrafficArchive getTrafficArchive(
+            Context context) {
+        if (trafficArchive == null) {
+            File root = context.getExternalFilesDir(null);
+            if (root == null) {
+                root = context.getFilesDir();
+            }
+            trafficArchive = new TrafficArchive(new File(root,
+                    TrafficArchive.DIRECTORY));
+        }
+        return trafficArchive;
+    }
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        StartupTrace.markActivityCreated();
+        if (itemStates == null) {
+            itemStates = new ItemStateStore(getFilesDir());
+        }
+        if (timeline == null) {
+            timeline = new TimelineEngine(TimelineEngine.DEFAULT_RUN_CAPACITY,
+                    getFilesDir(), duplicateIndex);
+        }
+        if (descriptionStore == null) {
+            descriptionStore = new DescriptionStore(new File(getCacheDir(),
+                    DescriptionStore.DIRECTORY),
+                    DescriptionStore.DEFAULT_CAPACITY);
+        }
+        if (memoryGovernor == null) {
+            createMemoryGovernor();
+        }
+
+        // Non critical work waits until the first frame is drawn
+        final View decorView = getWindow().getDecorView();
+        decorView.getViewTreeObserver().addOnPreDrawListener(
+                new ViewTreeObserver.OnPreDrawListener() {
+                    @Override
+                    public boolean onPreDraw() {
+                        decorView.getViewTreeObserver()
+                                .removeOnPreDrawListener(this);
+                        // runs once the frame being prepared has been drawn
+                        decorView.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                onFirstFrameDrawn();
+                            }
+                        });
+                        return true;
+                    }
+                });
+    }
+
+    /**
+     * Runs the startup work that does not contribute to the first frame.
+     */
+    private void onFirstFrameDrawn() {
+        StartupTrace.markFirstFrame();
+        firstFrameDrawn = true;
 
         // Register BroadcastReceiver to track connection changes.
         IntentFilter filter = new IntentFilter(
                 ConnectivityManager.CONNECTIVITY_ACTION);
         receiver = new NetworkReceiver();
         this.registerReceiver(receiver, filter);
+
+        // Warms the read state and the saved timeline before the first
+        // download needs them
+        LaneExecutor.execute(LaneExecutor.Lane.PERSIST, new Runnable() {
+            @Override
+            public void run() {
+                itemStates.load();
+                timeline.load();
+            }
+        });
+
+        refreshFromPreferences();
     }
 
     /**
      * Refreshes the display if the network connection and the pref settings
-     * allow it.
+     * allow it. On the first start this waits for the first frame.
      */
     @Override
     public void onStart() {
         super.onStart();
+        if (firstFrameDrawn) {
+            refreshFromPreferences();
+        }
+    }
 
+    /**
+     * Reads the preferences and the connection status and loads the feed if
+     * they allow it.
+     */
+    private void refreshFromPreferences() {
         // Gets the user's network preference settings
         SharedPreferences sharedPrefs = PreferenceManager
                 .getDefaultSharedPreferences(this);
@@ -169,6 +391,17 @@ public class RssReaderApp extends ListActivity {
         setsPref(sharedPrefs.getString("listPref", WIFI));
         setsUrl(sharedPrefs.getString("listUrlPref", DEFAULT_URL));
         setWithDescription(sharedPrefs.getBoolean("summaryPref", false));
+        int length = Integer.parseInt(sharedPrefs.getString(
+                "summaryLengthPref",
+                Integer.toString(HtmlSummarizer.DEFAULT_LIMIT)));
+        if (length != getSummaryLength()) {
+            // decoded summaries were cut at the previous length
+            descriptionStore.invalidate();
+        }
+        setSummaryLength(length);
+        setLazySummaries(sharedPrefs.getBoolean("lazySummaryPref", true));
+        setTrafficMode(TrafficArchive.Mode.fromPreference(
+                sharedPrefs.getString("trafficPref", TRAFFIC_OFF)));
 
         updateConnectionStatus();
 
@@ -180,16 +413,91 @@ public class RssReaderApp extends ListActivity {
 		 * force the display of an error page instead of feed content.
 		 */
         if (isRefreshDisplay()) {
-            loadRss();
+            refresh();
         }
     }
 
+    /**
+     * Sets the cache budget from the memory class of the device and registers
+     * the process wide caches.
+     */
+    private void createMemoryGovernor() {
+        ActivityManager activityManager = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
+        memoryGovernor = new MemoryGovernor(activityManager.getMemoryClass());
+        memoryGovernor.register("duplicates",
+                MemoryGovernor.PRIORITY_REBUILDABLE, duplicateIndex);
+        memoryGovernor.register("descriptions",
+                MemoryGovernor.PRIORITY_DISPOSABLE, descriptionStore);
+        memoryGovernor.register("timeline",
+                MemoryGovernor.PRIORITY_REBUILDABLE, timeline);
+        memoryGovernor.register("itemStates",
+                MemoryGovernor.PRIORITY_USER_STATE, itemStates);
+        memoryGovernor.register("feedBuffers",
+                MemoryGovernor.PRIORITY_DISPOSABLE,
+                new MemoryGovernor.Trimmable() {
+                    @Override
+                    public long sizeBytes() {
+                        return FeedBufferPool.retainedBytes();
+                    }
+
+                    @Override
+                    public void spill() {
+                    }
+
+                    @Override
+                    public void trimToBytes(long bytes) {
+                        FeedBufferPool.trimToBytes(bytes);
+                    }
+                });
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            // the caches are static and outlive the activity: the
+            // application keeps receiving the callbacks once it is gone
+            getApplicationContext().registerComponentCallbacks(memoryGovernor);
+        }
+    }
+
+    /**
+     * Before Ice Cream Sandwich the governor cannot be registered with the
+     * application and there is no onTrimMemory; the activity forwards
+     * onLowMemory instead.
+     */
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            memoryGovernor.onLowMemory();
+        }
+    }
+
+    /**
+     * Persists the read and starred state off the UI thread.
+     */
+    @Override
+    public void onStop() {
+        super.onStop();
+        LaneExecutor.execute(LaneExecutor.Lane.PERSIST, new Runnable() {
+            @Override
+            public void run() {
+                itemStates.save();
+                timeline.save();
+            }
+        });
+    }
+
     @Override
     public void onDestroy() {
         super.onDestroy();
+        if (refreshTask != null) {
+            refreshTask.cancel();
+        }
+        if (prefetchTask != null) {
+            prefetchTask.cancel();
+            prefetchTask = null;
+        }
         if (receiver != null) {
 
             this.unregisterReceiver(receiver);
+            receiver = null;
         }
     }
 
@@ -201,13 +509,6 @@ public class RssReaderApp extends ListActivity {
 
     }
 
-    @Override
-    public boolean onMenuItemSelected(int featureId, MenuItem item) {
-        super.onMenuItemSelected(featureId, item);
-        this.loadRss();
-        return true;
-    }
-
     /**
      * Checks the network connection and sets the wifiConnected and
      * mobileConnected variables accordingly
@@ -232,21 +533,20 @@ public class RssReaderApp extends ListActivity {
     }
 
     /**
-     * Uses AsyncTask subclass to download the XML feed from stackoverflow.com
+     * Uses a LaneTask subclass to download the XML feed on the fetch lane.
      * This avoids UI lock up. To prevent network operations from causing a
      * delay that results in a poor user experience, always perform network
      * operations on a separate thread from the UI.
      */
     private void loadRss() {
-        if (((getsPref().equals(ANY)) && (wifiConnected || mobileConnected))
-                || ((getsPref().equals(WIFI)) && (wifiConnected))) {
-            // AsyncTask subclass
+        if (canDownload()) {
+            // LaneTask subclass
             Toast.makeText(RssReaderApp.this,
                     getResources().getString(R.string.loading_message),
                     Toast.LENGTH_LONG).show();
             Log.d(applicationTag, getResources().getString(R.string.url_detail)
                     + getsUrl());
-            new DownloadXmlTask().execute(getsUrl());
+            startRefresh(new DownloadXmlTask(getsUrl()));
 
         } else {
             Toast.makeText(RssReaderApp.this,
@@ -255,6 +555,113 @@ public class RssReaderApp extends ListActivity {
         }
     }
 
+    /**
+     * Shows the combined timeline of every feed straight away and refreshes
+     * the due feeds into it.
+     */
+    private void loadTimeline() {
+        // what earlier refreshes and processes downloaded, until fresh
+        // entries arrive
+        showTimeline(timeline.newest(TIMELINE_SIZE));
+        if (canDownload()) {
+            Toast.makeText(RssReaderApp.this,
+                    getResources().getString(R.string.loading_message),
+                    Toast.LENGTH_LONG).show();
+            startRefresh(new TimelineTask());
+        }
+    }
+
+    /**
+     * Replaces the rows of the timeline list in place, keeping the scroll
+     * position, or sets up the list if it shows something else.
+     *
+     * @param entries newest entries of the timeline
+     */
+    private void showTimeline(List<Entry> entries) {
+        ListAdapter adapter = (ListAdapter) getListAdapter();
+        if (adapter != null && adapter.timelineRows) {
+            adapter.setNotifyOnChange(false);
+            adapter.clear();
+            adapter.addAll(entries);
+            adapter.notifyDataSetChanged();
+        } else {
+            adapter = new ListAdapter(RssReaderApp.this, R.layout.row,
+                    entries);
+            adapter.timelineRows = true;
+            setListAdapter(adapter);
+        }
+    }
+
+    /**
+     * Runs a refresh the user asked for on the fetch lane, replacing the one
+     * in progress.
+     */
+    private void startRefresh(LaneTask<List<Entry>> task) {
+        if (refreshTask != null) {
+            refreshTask.cancel();
+        }
+        refreshTask = task.execute(LaneExecutor.Lane.FETCH);
+    }
+
+    /**
+     * Plans the next refresh: the feeds due according to the registry, plus
+     * the ones a memory trim dropped from the timeline, grouped by host.
+     * Each host gets at most {@link #FEEDS_PER_HOST} feeds, downloaded back
+     * to back so they share its kept-alive connection; the rest stay due.
+     * Runs off the UI thread.
+     *
+     * @param limit maximum number of feeds to plan
+     * @return urls of the feeds by host
+     */
+    private Map<String, List<String>> dueFeeds(int limit) {
+        Map<String, List<String>> byHost = new LinkedHashMap<String, List<String>>();
+        for (Map.Entry<String, List<Subscription>> batch : getSubscriptions(
+                this).planRefresh(System.currentTimeMillis(), limit)
+                .entrySet()) {
+            List<String> urls = new ArrayList<String>(FEEDS_PER_HOST);
+            for (Subscription subscription : batch.getValue()) {
+                if (urls.size() == FEEDS_PER_HOST) {
+                    break;
+                }
+                urls.add(subscription.getUrl());
+            }
+            byHost.put(batch.getKey(), urls);
+        }
+        for (String url : timeline.takeForgotten()) {
+            String host = new Subscription(url, null).getHost();
+            List<String> urls = byHost.get(host);
+            if (urls == null) {
+                urls = new ArrayList<String>();
+                byHost.put(host, urls);
+            }
+            if (!urls.contains(url)) {
+                urls.add(url);
+            }
+        }
+        return byHost;
+    }
+
+    /**
+     * Reloads the selected feed or the combined timeline.
+     */
+    private void refresh() {
+        if (timelineMode) {
+            loadTimeline();
+        } else {
+            loadRss();
+        }
+    }
+
+    /**
+     * @return whether the network preference and connection allow downloads
+     */
+    private boolean canDownload() {
+        // replays read captured responses, they need no connection
+        return getTrafficMode().isReplay()
+                || ((getsPref().equals(ANY)) && (wifiConnected || mobileConnected))
+                || ((getsPref().equals(WIFI)) && (wifiConnected));
+    }
+
     /**
      * Populates the activity's options menu.
      *
@@ -283,7 +690,22 @@ public class RssReaderApp extends ListActivity {
                 startActivity(settingsActivity);
                 return true;
             case R.id.refresh:
-                loadRss();
+                refresh();
+                return true;
+            case R.id.timeline:
+                timelineMode = !timelineMode;
+                refresh();
+                return true;
+            case R.id.mark_all_read:
+                markAllRead();
+                return true;
+            case R.id.import_opml:
+                new ImportOpmlTask(new File(getExternalFilesDir(null),
+                        OPML_FILE)).execute(LaneExecutor.Lane.PERSIST);
+                return true;
+            case R.id.export_opml:
+                new ExportOpmlTask(new File(getExternalFilesDir(null),
+                        OPML_FILE)).execute(LaneExecutor.Lane.PERSIST);
                 return true;
             default:
                 return super.onOptionsItemSelected(item);
@@ -291,16 +713,250 @@ public class RssReaderApp extends ListActivity {
     }
 
     /**
-     * Implementation of AsyncTask used to download XML feed from
-     * stackoverflow.com
+     * Marks every entry of the current feed as read, or in the timeline
+     * every entry of the feeds shown, and redraws the list.
      */
-    private class DownloadXmlTask extends AsyncTask<String, Void, List<Entry>> {
+    private void markAllRead() {
+        ListAdapter adapter = (ListAdapter) getListAdapter();
+        if (timelineMode && adapter != null) {
+            // one watermark per feed present in the timeline
+            Set<String> feeds = new HashSet<String>();
+            for (Entry entry : adapter.items) {
+                if (entry.getFeed() != null && feeds.add(entry.getFeed())) {
+                    itemStates.markAllRead(entry.getFeed());
+                }
+            }
+        } else {
+            itemStates.markAllRead(getsUrl());
+        }
+        if (adapter != null) {
+            adapter.notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * Downloads the feeds due for a refresh, host by host, and merges them
+     * into the timeline. The list is updated as feeds arrive, at most every
+     * {@link #PROGRESS_INTERVAL_MS}.
+     */
+    private class TimelineTask extends DownloadXmlTask {
+        private static final long PROGRESS_INTERVAL_MS = 500;
+        private String timelineTaskTag = this.getClass().getSimpleName();
+
+        TimelineTask() {
+            super(null);
+        }
+
+        @Override
+        protected List<Entry> doInBackground() {
+            itemStates.load();
+            timeline.load();
+            publishProgress();
+            long lastProgress = SystemClock.elapsedRealtime();
+            Exception failure = null;
+            for (List<String> batch : dueFeeds(TIMELINE_FEEDS).values()) {
+                for (String url : batch) {
+                    if (isCancelled()) {
+                        break;
+                    }
+                    try {
+                        loadXmlFromNetwork(url);
+                    } catch (IOException e) {
+                        failure = e;
+                        Log.e(timelineTaskTag, url + ": " + e.toString());
+                    } catch (XmlPullParserException e) {
+                        failure = e;
+                        Log.e(timelineTaskTag, url + ": " + e.toString());
+                    }
+                    long now = SystemClock.elapsedRealtime();
+                    if (now - lastProgress >= PROGRESS_INTERVAL_MS) {
+                        lastProgress = now;
+                        publishProgress();
+                    }
+                }
+            }
+            List<Entry> newest = timeline.newest(TIMELINE_SIZE);
+            if (newest.isEmpty() && failure != null) {
+                return exceptionAsEntryList(failure,
+                        getResources().getString(R.string.connection_error));
+            }
+            return newest;
+        }
+
+        @Override
+        protected void onProgressUpdate() {
+            showTimeline(timeline.newest(TIMELINE_SIZE));
+        }
+
+        @Override
+        protected void onPostExecute(List<Entry> result) {
+            if (result.size() == 1 && result.get(0).getFeed() == null) {
+                // nothing to show but the error
+                super.onPostExecute(result);
+                return;
+            }
+            showTimeline(result);
+            memoryGovernor.enforceBudget();
+            Log.d(timelineTaskTag, LaneExecutor.metrics());
+            Toast.makeText(RssReaderApp.this,
+                    getResources().getString(R.string.loaded_message),
+                    Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    /**
+     * Refreshes the due feeds into the timeline on the prefetch lane, so
+     * that opening the combined timeline finds them ready. Steps aside
+     * between feeds while a refresh asked for by the user is running, and
+     * fetches at most {@link #PREFETCH_FEEDS_MOBILE} feeds without Wi-Fi.
+     */
+    private class PrefetchTask extends DownloadXmlTask {
+        private String prefetchTaskTag = this.getClass().getSimpleName();
+
+        PrefetchTask() {
+            super(null);
+        }
+
+        @Override
+        protected List<Entry> doInBackground() {
+            int fetched = 0;
+            feeds:
+            for (List<String> batch : dueFeeds(prefetchLimit()).values()) {
+                for (String url : batch) {
+                    LaneExecutor.awaitFetchIdle(getToken());
+                    // the connection or the preference may have changed
+                    // while waiting
+                    if (isCancelled() || !canDownload()
+                            || fetched >= prefetchLimit()) {
+                        break feeds;
+                    }
+                    fetched++;
+                    try {
+                        loadXmlFromNetwork(url);
+                    } catch (IOException e) {
+                        Log.e(prefetchTaskTag, url + ": " + e.toString());
+                    } catch (XmlPullParserException e) {
+                        Log.e(prefetchTaskTag, url + ": " + e.toString());
+                    }
+                }
+            }
+            Log.d(prefetchTaskTag, LaneExecutor.metrics());
+            return null;
+        }
+
+        private int prefetchLimit() {
+            return wifiConnected ? TIMELINE_FEEDS : PREFETCH_FEEDS_MOBILE;
+        }
+
+        @Override
+        protected void onPostExecute(List<Entry> result) {
+            // nothing to show, the entries wait in the timeline
+            if (prefetchTask == this) {
+                prefetchTask = null;
+            }
+        }
+    }
+
+    /**
+     * Imports the feeds of an OPML file in a single batched write.
+     */
+    private class ImportOpmlTask extends LaneTask<Integer> {
+        private String importTaskTag = this.getClass().getSimpleName();
+        private final File file;
+
+        ImportOpmlTask(File file) {
+            this.file = file;
+        }
+
+        @Override
+        protected Integer doInBackground() {
+            InputStream in = null;
+            try {
+                in = new FileInputStream(file);
+                return getSubscriptions(RssReaderApp.this).importAll(
+                        Opml.read(in));
+            } catch (IOException e) {
+                Log.e(importTaskTag, e.toString());
+            } catch (XmlPullParserException e) {
+                Log.e(importTaskTag, e.toString());
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        Log.e(importTaskTag, e.toString());
+                    }
+                }
+            }
+            return null;
+        }
+
+        @Override
+        protected void onPostExecute(Integer added) {
+            Toast.makeText(RssReaderApp.this, added == null
+                    ? getResources().getString(R.string.opml_error)
+                    : getResources().getString(R.string.opml_imported) + added,
+                    Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    /**
+     * Writes every followed feed to an OPML file.
+     */
+    private class ExportOpmlTask extends LaneTask<File> {
+        private String exportTaskTag = this.getClass().getSimpleName();
+        private final File file;
+
+        ExportOpmlTask(File file) {
+            this.file = file;
+        }
+
+        @Override
+        protected File doInBackground() {
+            FileOutputStream out = null;
+            try {
+                out = new FileOutputStream(file);
+                Opml.write(getSubscriptions(RssReaderApp.this).getAll(), out);
+                return file;
+            } catch (IOException e) {
+                Log.e(exportTaskTag, e.toString());
+                return null;
+            } finally {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        Log.e(exportTaskTag, e.toString());
+                    }
+                }
+            }
+        }
+
+        @Override
+        protected void onPostExecute(File file) {
+            Toast.makeText(RssReaderApp.this, file == null
+                    ? getResources().getString(R.string.opml_error)
+                    : getResources().getString(R.string.opml_exported) + file,
+                    Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    /**
+     * Implementation of LaneTask used to download the XML feed
+     */
+    private class DownloadXmlTask extends LaneTask<List<Entry>> {
         private String downloadTaskTag = this.getClass().getSimpleName();
+        private final String url;
+
+        DownloadXmlTask(String url) {
+            this.url = url;
+        }
 
         @Override
-        protected List<Entry> doInBackground(String... urls) {
+        protected List<Entry> doInBackground() {
             try {
-                return loadXmlFromNetwork(urls[0]);
+                itemStates.load();
+                return loadXmlFromNetwork(url);
             } catch (IOException e) {
                 return exceptionAsEntryList(e,
                         getResources().getString(R.string.connection_error));
@@ -313,8 +969,8 @@ public class RssReaderApp extends ListActivity {
         /**
          * Returns the exception as a entry list element to display it
          */
-        private List<Entry> exceptionAsEntryList(Exception e,
-                                                 String exceptionMessage) {
+        List<Entry> exceptionAsEntryList(Exception e,
+                                         String exceptionMessage) {
             Entry entryException = new Entry();
             entryException.setTitle(exceptionMessage);
             List<Entry> exceptionList = new ArrayList<Entry>();
@@ -333,10 +989,19 @@ public class RssReaderApp extends ListActivity {
 
             setListAdapter(new ListAdapter(RssReaderApp.this, R.layout.row,
                     result));
+            memoryGovernor.enforceBudget();
+            Log.d(downloadTaskTag, LaneExecutor.metrics());
 
             Toast.makeText(RssReaderApp.this,
                     getResources().getString(R.string.loaded_message),
                     Toast.LENGTH_SHORT).show();
+            if (!timelineMode && !getTrafficMode().isReplay()
+                    && prefetchTask == null) {
+                // warms the combined timeline without delaying the next
+                // refresh; one still pending will pick up the due feeds
+                prefetchTask = new PrefetchTask();
+                prefetchTask.execute(LaneExecutor.Lane.PREFETCH);
+            }
 
         }
 
@@ -349,14 +1014,70 @@ public class RssReaderApp extends ListActivity {
          * @throws XmlPullParserException
          * @throws IOException
          */
-        private List<Entry> loadXmlFromNetwork(String urlString)
+        List<Entry> loadXmlFromNetwork(String urlString)
                 throws XmlPullParserException, IOException {
             InputStream stream = null;
-            RssXmlPullParser rssSource = new RssXmlPullParser();
             List<Entry> entries = null;
+            // allocation profiling: adb shell setprop log.tag.DownloadXmlTask VERBOSE
+            boolean profile = Log.isLoggable(downloadTaskTag, Log.VERBOSE);
+            int gcBefore = 0;
+            if (profile) {
+                Debug.resetThreadAllocCount();
+                Debug.resetThreadAllocSize();
+                Debug.startAllocCounting();
+                gcBefore = Debug.getGlobalGcInvocationCount();
+            }
+            TrafficArchive.Mode mode = getTrafficMode();
+            FeedBufferPool.FeedBuffer body = null;
             try {
-                stream = downloadUrl(urlString);
-                entries = rssSource.parse(stream);
+                int contentLength;
+                if (mode.isReplay()) {
+                    // the captured response stands in for the network
+                    TrafficArchive.Replay replay = getTrafficArchive(
+                            RssReaderApp.this).replay(urlString,
+                            mode == TrafficArchive.Mode.REPLAY_FAST);
+                    stream = replay;
+                    contentLength = replay.getContentLength();
+                } else {
+                    long requested = SystemClock.elapsedRealtime();
+                    HttpURLConnection conn = downloadUrl(urlString);
+                    stream = conn.getInputStream();
+                    contentLength = conn.getContentLength();
+                    if (mode == TrafficArchive.Mode.CAPTURE) {
+                        stream = getTrafficArchive(RssReaderApp.this).capture(
+                                urlString, conn, stream, requested);
+                    }
+                }
+                // the body is read with large reads into a per thread buffer
+                body = FeedBufferPool.read(stream, contentLength);
+                DescriptionStore.RawFeed rawFeed = null;
+                if (isWithDescription() && isLazySummaries()) {
+                    // descriptions stay on disk until their row is shown
+                    try {
+                        rawFeed = descriptionStore.save(urlString,
+                                body.getBytes(), body.getLength());
+                    } catch (IOException e) {
+                        // e.g. a full cache partition, summarized while
+                        // parsing instead
+                        Log.w(downloadTaskTag, urlString + ": " + e.toString());
+                    }
+                }
+                entries = rssParser.parse(body.newInputStream(), urlString,
+                        rawFeed);
+                if (rawFeed != null && rawFeed.isCleared()) {
+                    // the byte scan missed descriptions the parser found,
+                    // summarized while parsing instead
+                    entries = rssParser.parse(body.newInputStream(),
+                            urlString, null);
+                }
+                // new items get the next sequence, read up to the
+                // watermark of their feed
+                itemStates.ingest(entries);
+                timeline.merge(urlString, entries);
+                if (!mode.isReplay()) {
+                    getSubscriptions(RssReaderApp.this).markRefreshed(
+                            urlString, System.currentTimeMillis());
+                }
                 Log.d(downloadTaskTag,
                         getResources().getString(R.string.stream_closed_debug));
                 /*
@@ -364,25 +1085,37 @@ public class RssReaderApp extends ListActivity {
 				 * finished using it.
 				 */
             } finally {
+                if (body != null) {
+                    // lets a trim release the buffer while the thread idles
+                    body.release();
+                }
                 if (stream != null) {
                     stream.close();
                     Log.d(downloadTaskTag,
                             getResources().getString(R.string.stream_closed));
                 }
+                if (profile) {
+                    Debug.stopAllocCounting();
+                    Log.v(downloadTaskTag, "allocations="
+                            + Debug.getThreadAllocCount() + " allocatedBytes="
+                            + Debug.getThreadAllocSize() + " gcs="
+                            + (Debug.getGlobalGcInvocationCount() - gcBefore)
+                            + " " + FeedBufferPool.stats());
+                }
             }
             return entries;
         }
 
         /**
-         * Given a string representation of a URL, sets up a connection and gets
-         * an input stream. Data for the user into the content from the
-         * transaction content for the content into the
+         * Given a string representation of a URL, sets up a connection and
+         * starts the query. The caller reads the body from the connection,
+         * using its content length to size the read buffer.
          *
          * @param urlString url to connect
-         * @return Steam of the
+         * @return the connected connection
          * @throws IOException
          */
-        private InputStream downloadUrl(String urlString) throws IOException {
+        private HttpURLConnection downloadUrl(String urlString) throws IOException {
             URL url = new URL(urlString);
             HttpURLConnection conn = (HttpURLConnection) url.openConnection();
             conn.setReadTimeout(10000 /* milliseconds */);
@@ -393,7 +1126,7 @@ public class RssReaderApp extends ListActivity {
             conn.connect();
             Log.d(downloadTaskTag,
                     getResources().getString(R.string.query_started));
-            return conn.getInputStream();
+            return conn;
         }
 
     }
@@ -405,7 +1138,14 @@ public class RssReaderApp extends ListActivity {
         private List<Entry> items;
         private int[] colors = new int[]{Color.BLACK, Color.DKGRAY};
         private int[] textColors = new int[]{Color.LTGRAY, Color.WHITE};
+        private int readTextColor = Color.GRAY;
+        // relative size of the summary, as the <small> tag renders it
+        private static final float SUMMARY_SIZE = 0.8f;
         private String listAdapterTag;
+        // whether the rows are the combined timeline, updated in place
+        boolean timelineRows = false;
+        // entries whose description is being decoded
+        private final Set<Entry> decoding = new HashSet<Entry>();
 
         public ListAdapter(Context context, int textViewResourceId,
                            List<Entry> items) {
@@ -427,23 +1167,26 @@ public class RssReaderApp extends ListActivity {
                 v = vi.inflate(R.layout.row, null);
             }
             final Entry item = items.get(position);
+            if (item != null && item.getFeed() != null) {
+                StartupTrace.markFirstContent();
+            } else {
+                // error rows, e.g. the connection error, are not content
+                StartupTrace.markContentError();
+            }
             if (item != null) {
                 assert v != null;
                 TextView tView = (TextView) v.findViewById(R.id.rss_entry_row);
                 tView.setMovementMethod(ScrollingMovementMethod.getInstance());
                 listAdapterTag = this.getClass().getSimpleName();
-                String feedItemContent;
-                if (!RssReaderApp.isWithDescription()) {
-                    feedItemContent = parseContent(item.getTitle());
-                } else {
-                    feedItemContent = parseContent(item.getTitle(),
-                            item.getDescription());
-                }
-                tView.setText(Html.fromHtml(feedItemContent));
+                boolean starred = itemStates.isStarred(item);
+                boolean read = itemStates.isRead(item);
+                tView.setText(parseContent(item, starred));
                 // Setting the URL link on clickable item
                 tView.setOnClickListener(new OnClickListener() {
                     @Override
                     public void onClick(View v) {
+                        itemStates.markRead(item);
+                        notifyDataSetChanged();
                         Log.d(listAdapterTag,
                                 getResources().getString(R.string.url_detail)
                                         + item.getLink().toString());
@@ -464,46 +1207,86 @@ public class RssReaderApp extends ListActivity {
                         }
                     }
                 });
-                // Alternate Row Color
+                // Starring the item on long click
+                tView.setOnLongClickListener(new View.OnLongClickListener() {
+                    @Override
+                    public boolean onLongClick(View v) {
+                        itemStates.toggleStarred(item);
+                        notifyDataSetChanged();
+                        return true;
+                    }
+                });
+                // Alternate Row Color, read items are dimmed
                 int colorPos = position % colors.length;
                 tView.setBackgroundColor(colors[colorPos]);
-                tView.setTextColor(textColors[colorPos]);
+                tView.setTextColor(read ? readTextColor : textColors[colorPos]);
             }
             return v;
         }
 
         /**
-         * Create html-like content for the TextView
+         * Create the styled content for the TextView: the title in bold and,
+         * when summaries are shown, the plain text summary in a smaller size.
          *
-         * @param title Feed title
-         * @return html content
+         * @param item    Rss entry of the row
+         * @param starred whether the item is starred
+         * @return styled content
          */
-        private String parseContent(String title) {
-            StringBuilder sb = new StringBuilder();
+        private CharSequence parseContent(Entry item, boolean starred) {
+            SpannableStringBuilder sb = new SpannableStringBuilder();
             // Setting the title of the TextView
-            sb.append("<b>");
-            sb.append(title);
-            sb.append("</b>");
-            return sb.toString();
+            if (starred) {
+                sb.append("\u2605 ");
+            }
+            int titleStart = sb.length();
+            sb.append(item.getTitle());
+            sb.setSpan(new StyleSpan(Typeface.BOLD), titleStart, sb.length(),
+                    Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            String summary = item.getSummary();
+            if (summary == null && item.getRawFeed() != null
+                    && RssReaderApp.isWithDescription()) {
+                summary = descriptionStore.peek(item);
+                if (summary == null && decoding.add(item)) {
+                    new DecodeTask(item).execute(LaneExecutor.Lane.RENDER);
+                }
+            }
+            if (RssReaderApp.isWithDescription() && summary != null
+                    && summary.length() > 0) {
+                sb.append('\n');
+                int summaryStart = sb.length();
+                sb.append(summary);
+                sb.setSpan(new RelativeSizeSpan(SUMMARY_SIZE), summaryStart,
+                        sb.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+            return sb;
         }
 
         /**
-         * Create html-like content for the TextView
-         *
-         * @param title       Feed title
-         * @param description description summary of the feed
-         * @return parsed string
+         * Decodes the description of a row on the render lane, then binds the
+         * row again with its summary.
          */
-        private String parseContent(String title, String description) {
-            StringBuilder sb = new StringBuilder();
-            sb.append(parseContent(title));
-            sb.append("<br>");
-            sb.append("<small>");
-            // removing html
-            sb.append(Html.fromHtml(description));
-            sb.append("</small>");
-            return sb.toString();
-        }
+        private class DecodeTask extends LaneTask<String> {
+            private final Entry item;
 
+            DecodeTask(Entry item) {
+                this.item = item;
+            }
+
+            @Override
+            protected String doInBackground() {
+                return descriptionStore.decode(item,
+                        new HtmlSummarizer(getSummaryLength()));
+            }
+
+            @Override
+            protected void onPostExecute(String summary) {
+                decoding.remove(item);
+                // a failed decode is tried again when the row is next bound,
+                // not straight away
+                if (summary != null) {
+                    notifyDataSetChanged();
+                }
+            }
+        }
     }
 }
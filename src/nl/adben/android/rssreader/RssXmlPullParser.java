@@ -15,9 +15,10 @@
 package nl.adben.android.rssreader;
 
 import android.util.Log;
-import android.util.Xml;
 import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
@@ -34,15 +35,62 @@ public class RssXmlPullParser {
     static final String LINK = "link";
     static final String TITLE = "title";
     static final String ITEM = "item";
+    static final String PUB_DATE = "pubDate";
+    // feedburner keeps the real article link here, <link> is its redirect
+    static final String ORIG_LINK = "origLink";
+    static final String FEEDBURNER_NS = "http://rssnamespace.org/feedburner/ext/1.0";
+    public List<Entry> parse(InputStream in)
+            throws XmlPullParserException, IOException {
+        return parse(in, null);
+    }
+
+    /**
+     * Parses the feed; every item is returned, stories shared with other
+     * feeds are only collapsed in the combined timeline.
+     *
+     * @param in      stream of the rss feed
+     * @param feedUrl url the stream was read from
+     * @return list of the parsed entries
+     * @throws XmlPullParserException if the feed is not well formed
+     * @throws IOException            if the stream cannot be read
+     */
+    public List<Entry> parse(InputStream in, String feedUrl)
+            throws XmlPullParserException, IOException {
+        return parse(in, feedUrl, null);
+    }
 
-    public List<Entry> parse(InputStream in) {
+    /**
+     * Parses the feed; with a raw feed the descriptions are not read, each
+     * entry only points to its description in the raw feed.
+     *
+     * @param in      stream of the rss feed
+     * @param feedUrl url the stream was read from
+     * @param rawFeed body of the same stream on disk, may be null
+     * @return list of the parsed entries
+     * @throws XmlPullParserException if the feed is not well formed
+     * @throws IOException            if the stream cannot be read
+     */
+    public List<Entry> parse(InputStream in, String feedUrl,
+                             DescriptionStore.RawFeed rawFeed)
+            throws XmlPullParserException, IOException {
         List<Entry> messages = null;
-        XmlPullParser parser = Xml.newPullParser();
+        // descriptions are reduced to text once here, never when binding rows
+        HtmlSummarizer summarizer = new HtmlSummarizer(
+                RssReaderApp.getSummaryLength());
+        List<String> benchmarked = SummarizerBenchmark.isEnabled()
+                ? new ArrayList<String>() : null;
+        // reuses the parser of the calling thread across feeds
+        XmlPullParser parser = FeedBufferPool.parser();
         try {
             // auto-detect the encoding from the stream
             parser.setInput(in, null);
+            if (rawFeed != null) {
+                rawFeed.setEncoding(parser.getInputEncoding());
+            }
             int eventType = parser.getEventType();
             Entry currentEntry = null;
+            // index of the last description met, in document order
+            int descriptions = -1;
             boolean done = false;
             while (eventType != XmlPullParser.END_DOCUMENT && !done) {
                 String name;
@@ -52,16 +100,40 @@ public class RssXmlPullParser {
                         break;
                     case XmlPullParser.START_TAG:
                         name = parser.getName();
+                        // media:description and the like are reported as
+                        // "description" too, the byte scan only finds plain
+                        // <description> elements
+                        boolean description = name.equalsIgnoreCase(DESCRIPTION)
+                                && parser.getPrefix() == null;
+                        if (description) {
+                            descriptions++;
+                        }
                         if (name.equalsIgnoreCase(ITEM)) {
                             currentEntry = new Entry();
+                            currentEntry.setFeed(feedUrl);
                         } else if (currentEntry != null) {
-                            if (name.equalsIgnoreCase(LINK)) {
+                            if (isOrigLink(parser, name)) {
+                                currentEntry.setLink(parser.nextText());
+                            } else if (name.equalsIgnoreCase(LINK)
+                                    && currentEntry.getLink() == null) {
                                 currentEntry.setLink(parser.nextText());
                                 //saving time without processing description
-                            } else if (name.equalsIgnoreCase(DESCRIPTION) && RssReaderApp.isWithDescription()) {
-                                currentEntry.setDescription(parser.nextText());
+                            } else if (description && RssReaderApp.isWithDescription()) {
+                                if (rawFeed != null) {
+                                    // decoded when the row is first shown
+                                    currentEntry.setDescriptionRef(rawFeed,
+                                            descriptions);
+                                } else {
+                                    String text = parser.nextText();
+                                    currentEntry.setSummary(summarizer.summarize(text));
+                                    if (benchmarked != null) {
+                                        benchmarked.add(text);
+                                    }
+                                }
                             } else if (name.equalsIgnoreCase(TITLE)) {
-                                currentEntry.setTitle(parser.nextText());
+                                currentEntry.setTitle(toText(parser.nextText()));
+                            } else if (name.equalsIgnoreCase(PUB_DATE)) {
+                                currentEntry.setDate(parser.nextText());
                             }
                         }
                         break;
@@ -78,11 +150,44 @@ public class RssXmlPullParser {
                 }
                 eventType = parser.next();
             }
-        } catch (Exception e) {
-            Log.e("RssReaderParser::PullFeedParser", e.getMessage(), e);
-            throw new RuntimeException(e);
+            if (rawFeed != null && descriptions + 1 != rawFeed.getCount()) {
+                // the byte scan disagrees with the parser, offsets are unsafe
+                Log.w("RssReaderParser::PullFeedParser", "found "
+                        + rawFeed.getCount() + " descriptions in " + feedUrl
+                        + ", parsed " + (descriptions + 1));
+                rawFeed.clear();
+            }
+        } catch (RuntimeException e) {
+            // e.g. an item link the URL class rejects, fails this feed only
+            Log.e("RssReaderParser::PullFeedParser", e.toString(), e);
+            throw new XmlPullParserException(e.toString(), parser, e);
+        }
+        if (benchmarked != null) {
+            SummarizerBenchmark.run(benchmarked, summarizer.getLimit());
         }
         return messages;
     }
 
+    /**
+     * Matches feedburner:origLink whether the parser processes namespaces,
+     * and only reports the local name, or not.
+     */
+    private static boolean isOrigLink(XmlPullParser parser, String name) {
+        if (name.equalsIgnoreCase(ORIG_LINK)) {
+            return FEEDBURNER_NS.equals(parser.getNamespace());
+        }
+        return name.equalsIgnoreCase("feedburner:" + ORIG_LINK);
+    }
+
+    /**
+     * Decodes the markup some feeds leave in their titles; titles without
+     * any are returned as is.
+     */
+    private static String toText(String title) {
+        if (title.indexOf('<') < 0 && title.indexOf('&') < 0) {
+            return title;
+        }
+        return new HtmlSummarizer(Integer.MAX_VALUE).summarize(title);
+    }
+
 }
@@ -14,11 +14,15 @@
 
 package nl.adben.android.rssreader;
 
+import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.os.Bundle;
+import android.preference.ListPreference;
 import android.preference.PreferenceFragment;
 
+import java.util.List;
+
 /**
  * This preference activity has in its manifest declaration an intent filter for
  * the ACTION_MANAGE_NETWORK_USAGE action. This activity provides a settings UI
@@ -32,6 +36,9 @@ public class SettingsActivity extends PreferenceFragment implements
         super.onCreate(savedInstanceState);
         // Loads the XML preferences file.
         addPreferencesFromResource(R.xml.preferences);
+        // Offers every followed feed instead of the built-in list
+        new LoadFeedsTask(getActivity().getApplicationContext()).execute(
+                LaneExecutor.Lane.PERSIST);
     }
 
     @Override
@@ -63,4 +70,40 @@ public class SettingsActivity extends PreferenceFragment implements
         // activity, the display refreshes to reflect the new settings.
         RssReaderApp.setRefreshDisplay(true);
     }
+
+    /**
+     * Reads the subscription registry and fills the feed selector with it.
+     */
+    private class LoadFeedsTask extends LaneTask<List<Subscription>> {
+        // outlives the fragment, getActivity() is null once it is detached
+        private final Context context;
+
+        LoadFeedsTask(Context context) {
+            this.context = context;
+        }
+
+        @Override
+        protected List<Subscription> doInBackground() {
+            return RssReaderApp.getSubscriptions(context).getAll();
+        }
+
+        @Override
+        protected void onPostExecute(List<Subscription> feeds) {
+            if (!isAdded()) {
+                return;
+            }
+            ListPreference feedSelector = (ListPreference) findPreference("listUrlPref");
+            if (feedSelector == null || feeds.isEmpty()) {
+                return;
+            }
+            String[] titles = new String[feeds.size()];
+            String[] urls = new String[feeds.size()];
+            for (int i = 0; i < titles.length; i++) {
+                titles[i] = feeds.get(i).toString();
+                urls[i] = feeds.get(i).getUrl();
+            }
+            feedSelector.setEntries(titles);
+            feedSelector.setEntryValues(urls);
+        }
+    }
 }
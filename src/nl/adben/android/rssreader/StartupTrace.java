@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2013
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package nl.adben.android.rssreader;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Records the milestones of a cold start: process start, activity creation,
+ * first frame and first content row. All times are
+ * SystemClock.elapsedRealtime() milliseconds.
+ * <p/>
+ * Once the first row is bound the durations are logged under the
+ * "StartupTrace" tag in a key=value form that tools/startup_benchmark.sh
+ * reads from logcat.
+ */
+public final class StartupTrace {
+    static final String TAG = "StartupTrace";
+    /*
+     * Clock ticks per second of /proc/self/stat, USER_HZ is 100 on Android
+     */
+    private static final int CLOCK_TICKS = 100;
+    /*
+     * Fallback for the process start, the time this class was loaded
+     */
+    private static final long CLASS_LOADED = SystemClock.elapsedRealtime();
+    private static long activityCreated = 0;
+    private static long firstFrame = 0;
+    private static long firstContent = 0;
+    private static boolean contentError = false;
+
+    private StartupTrace() {
+    }
+
+    public static void markActivityCreated() {
+        if (activityCreated == 0) {
+            activityCreated = SystemClock.elapsedRealtime();
+        }
+    }
+
+    public static void markFirstFrame() {
+        if (firstFrame == 0) {
+            firstFrame = SystemClock.elapsedRealtime();
+        }
+    }
+
+    public static boolean isFirstFrameDrawn() {
+        return firstFrame != 0;
+    }
+
+    /**
+     * Marks the first content row bound and logs the startup milestones.
+     */
+    public static void markFirstContent() {
+        if (firstContent != 0) {
+            return;
+        }
+        firstContent = SystemClock.elapsedRealtime();
+        long processStart = processStart();
+        Log.i(TAG, "activity_create_ms=" + (activityCreated - processStart)
+                + " first_frame_ms=" + (firstFrame - processStart)
+                + " first_content_ms=" + (firstContent - processStart));
+    }
+
+    /**
+     * Reports that the first row bound is an error message instead of feed
+     * content, so that a benchmark run without content fails instead of
+     * timing the error.
+     */
+    public static void markContentError() {
+        if (firstContent != 0 || contentError) {
+            return;
+        }
+        contentError = true;
+        Log.i(TAG, "content_error=1 elapsed_ms="
+                + (SystemClock.elapsedRealtime() - processStart()));
+    }
+
+    /**
+     * Reads the start time of the process from /proc/self/stat, which the
+     * platform only exposes through an API from Android N on.
+     *
+     * @return process start in elapsed realtime milliseconds
+     */
+    private static long processStart() {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader("/proc/self/stat"));
+            String stat = reader.readLine();
+            // the command name may contain spaces, fields restart after ')'
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2)
+                    .split(" ");
+            // starttime is field 22 of the line, 20 after the command name
+            long ticks = Long.parseLong(fields[19]);
+            return ticks * 1000 / CLOCK_TICKS;
+        } catch (IOException e) {
+            return CLASS_LOADED;
+        } catch (RuntimeException e) {
+            return CLASS_LOADED;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    Log.e(TAG, e.toString());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2013
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package nl.adben.android.rssreader;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Locale;
+
+/**
+ * A followed feed and its per feed settings
+ */
+public class Subscription {
+    public static final int DEFAULT_REFRESH_MINUTES = 60;
+    private String url;
+    private String title;
+    private String host;
+    private int refreshMinutes = DEFAULT_REFRESH_MINUTES;
+    private long nextDue = 0;
+    private boolean enabled = true;
+
+    public Subscription(String url, String title) {
+        setUrl(url);
+        this.title = title;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Sets the url and derives the host used to batch refreshes.
+     */
+    public void setUrl(String url) {
+        this.url = url.trim();
+        try {
+            this.host = new URL(this.url).getHost().toLowerCase(Locale.US);
+        } catch (MalformedURLException e) {
+            this.host = "";
+        }
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public void setTitle(String title) {
+        this.title = title;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getRefreshMinutes() {
+        return refreshMinutes;
+    }
+
+    public void setRefreshMinutes(int refreshMinutes) {
+        this.refreshMinutes = refreshMinutes;
+    }
+
+    /**
+     * @return time in milliseconds from which the feed should be refreshed
+     */
+    public long getNextDue() {
+        return nextDue;
+    }
+
+    public void setNextDue(long nextDue) {
+        this.nextDue = nextDue;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Override
+    public String toString() {
+        return title == null ? url : title;
+    }
+}
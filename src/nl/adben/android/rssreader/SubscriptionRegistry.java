@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2013
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package nl.adben.android.rssreader;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent list of the followed feeds, stored in SQLite.
+ * <p/>
+ * The table is seeded once from the feeds of res/values/arrays.xml. Imports
+ * are written in a single transaction and refresh planning is one indexed
+ * query for the due feeds, so neither depends on the size of the list on
+ * app start. All methods touch the database and must run off the UI thread.
+ */
+public class SubscriptionRegistry extends SQLiteOpenHelper {
+    static final String DATABASE_NAME = "subscriptions.db";
+    private static final int DATABASE_VERSION = 1;
+    static final String TABLE = "subscriptions";
+    static final String URL = "url";
+    static final String TITLE = "title";
+    static final String HOST = "host";
+    static final String REFRESH_MINUTES = "refresh_minutes";
+    static final String NEXT_DUE = "next_due";
+    static final String ENABLED = "enabled";
+    private static final String[] COLUMNS = {URL, TITLE, HOST,
+            REFRESH_MINUTES, NEXT_DUE, ENABLED};
+
+    private final Context context;
+
+    public SubscriptionRegistry(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this.context = context.getApplicationContext();
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " ("
+                + URL + " TEXT PRIMARY KEY NOT NULL, "
+                + TITLE + " TEXT, "
+                + HOST + " TEXT NOT NULL, "
+                + REFRESH_MINUTES + " INTEGER NOT NULL, "
+                + NEXT_DUE + " INTEGER NOT NULL, "
+                + ENABLED + " INTEGER NOT NULL)");
+        // serves the refresh planning query without scanning the table
+        db.execSQL("CREATE INDEX " + TABLE + "_due ON " + TABLE + " ("
+                + ENABLED + ", " + NEXT_DUE + ", " + HOST + ")");
+
+        String[] titles = context.getResources().getStringArray(
+                R.array.listUrlArray);
+        String[] urls = context.getResources().getStringArray(
+                R.array.listUrlValues);
+        List<Subscription> defaults = new ArrayList<Subscription>();
+        for (int i = 0; i < urls.length; i++) {
+            defaults.add(new Subscription(urls[i], titles[i]));
+        }
+        insert(db, defaults);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // first version of the schema
+    }
+
+    /**
+     * Adds the feeds in one transaction; feeds already followed are kept
+     * with their current settings.
+     *
+     * @param subscriptions feeds to add
+     * @return number of feeds actually added
+     */
+    public int importAll(List<Subscription> subscriptions) {
+        return insert(getWritableDatabase(), subscriptions);
+    }
+
+    private static int insert(SQLiteDatabase db,
+                              List<Subscription> subscriptions) {
+        int added = 0;
+        SQLiteStatement insert = db.compileStatement("INSERT OR IGNORE INTO "
+                + TABLE + " (" + URL + ", " + TITLE + ", " + HOST + ", "
+                + REFRESH_MINUTES + ", " + NEXT_DUE + ", " + ENABLED
+                + ") VALUES (?, ?, ?, ?, ?, ?)");
+        db.beginTransaction();
+        try {
+            for (Subscription subscription : subscriptions) {
+                insert.clearBindings();
+                insert.bindString(1, subscription.getUrl());
+                if (subscription.getTitle() == null) {
+                    insert.bindNull(2);
+                } else {
+                    insert.bindString(2, subscription.getTitle());
+                }
+                insert.bindString(3, subscription.getHost());
+                insert.bindLong(4, subscription.getRefreshMinutes());
+                insert.bindLong(5, subscription.getNextDue());
+                insert.bindLong(6, subscription.isEnabled() ? 1 : 0);
+                if (insert.executeInsert() != -1) {
+                    added++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+        }
+        return added;
+    }
+
+    /**
+     * @return every followed feed, ordered by title
+     */
+    public List<Subscription> getAll() {
+        Cursor cursor = getReadableDatabase().query(TABLE, COLUMNS, null,
+                null, null, null, TITLE + " COLLATE NOCASE");
+        return read(cursor);
+    }
+
+    /**
+     * Plans the next refresh: the enabled feeds due at the given time,
+     * grouped by host so that feeds of the same server can share a
+     * connection and be throttled together.
+     *
+     * @param now   current time in milliseconds
+     * @param limit maximum number of feeds to plan
+     * @return due feeds by host, hosts with the most overdue feed first
+     */
+    public Map<String, List<Subscription>> planRefresh(long now, int limit) {
+        Cursor cursor = getReadableDatabase().query(TABLE, COLUMNS,
+                ENABLED + " = 1 AND " + NEXT_DUE + " <= ?",
+                new String[]{Long.toString(now)}, null, null, NEXT_DUE,
+                Integer.toString(limit));
+        Map<String, List<Subscription>> byHost = new LinkedHashMap<String, List<Subscription>>();
+        for (Subscription subscription : read(cursor)) {
+            List<Subscription> batch = byHost.get(subscription.getHost());
+            if (batch == null) {
+                batch = new ArrayList<Subscription>();
+                byHost.put(subscription.getHost(), batch);
+            }
+            batch.add(subscription);
+        }
+        return byHost;
+    }
+
+    /**
+     * Schedules the next refresh of a feed after its refresh interval.
+     *
+     * @param url feed just refreshed
+     * @param now time of the refresh in milliseconds
+     */
+    public void markRefreshed(String url, long now) {
+        SQLiteStatement update = getWritableDatabase().compileStatement(
+                "UPDATE " + TABLE + " SET " + NEXT_DUE + " = ? + "
+                        + REFRESH_MINUTES + " * 60000 WHERE " + URL + " = ?");
+        try {
+            update.bindLong(1, now);
+            update.bindString(2, url);
+            update.executeUpdateDelete();
+        } finally {
+            update.close();
+        }
+    }
+
+    private static List<Subscription> read(Cursor cursor) {
+        List<Subscription> subscriptions = new ArrayList<Subscription>(
+                cursor.getCount());
+        try {
+            while (cursor.moveToNext()) {
+                Subscription subscription = new Subscription(
+                        cursor.getString(0), cursor.getString(1));
+                subscription.setRefreshMinutes(cursor.getInt(3));
+                subscription.setNextDue(cursor.getLong(4));
+                subscription.setEnabled(cursor.getInt(5) != 0);
+                subscriptions.add(subscription);
+            }
+        } finally {
+            cursor.close();
+        }
+        return subscriptions;
+    }
+}
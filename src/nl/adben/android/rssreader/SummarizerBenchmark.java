@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2013
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package nl.adben.android.rssreader;
+
+import android.text.Html;
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * Compares {@link HtmlSummarizer} with the Html.fromHtml path it replaced on
+ * the descriptions of a real feed. Enabled with
+ * "adb shell setprop log.tag.SummarizerBenchmark VERBOSE"; the parser then
+ * keeps the raw descriptions of each feed and runs this once per feed.
+ */
+public final class SummarizerBenchmark {
+    static final String TAG = "SummarizerBenchmark";
+    private static final int ROUNDS = 5;
+
+    private SummarizerBenchmark() {
+    }
+
+    public static boolean isEnabled() {
+        return Log.isLoggable(TAG, Log.VERBOSE);
+    }
+
+    /**
+     * Times both conversions over the descriptions and logs the average cost
+     * per description of each.
+     *
+     * @param descriptions raw HTML descriptions of one feed
+     * @param limit        summary length used by the reader
+     */
+    public static void run(List<String> descriptions, int limit) {
+        if (descriptions.isEmpty()) {
+            return;
+        }
+        HtmlSummarizer summarizer = new HtmlSummarizer(limit);
+        long chars = 0;
+        for (String description : descriptions) {
+            chars += description.length();
+        }
+        // one untimed round so both paths are loaded and warmed up
+        time(descriptions, null, 1);
+        time(descriptions, summarizer, 1);
+        long fromHtml = time(descriptions, null, ROUNDS);
+        long summarize = time(descriptions, summarizer, ROUNDS);
+        long count = (long) descriptions.size() * ROUNDS;
+        Log.v(TAG, descriptions.size() + " descriptions, "
+                + chars / descriptions.size() + " chars average: fromHtml "
+                + fromHtml / count + " ns, summarizer " + summarize / count
+                + " ns per description");
+    }
+
+    private static long time(List<String> descriptions,
+                             HtmlSummarizer summarizer, int rounds) {
+        long start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            for (String description : descriptions) {
+                if (summarizer == null) {
+                    Html.fromHtml(description).toString();
+                } else {
+                    summarizer.summarize(description);
+                }
+            }
+        }
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,515 @@
+/*
+ * Copyright (C) 2013
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package nl.adben.android.rssreader;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Combines the entries of every feed into a single timeline, newest first.
+ * <p/>
+ * Each feed keeps its own run of entries sorted newest first. A refresh only
+ * sorts its new entries and merges them into the run of its feed in linear
+ * time. Reading the timeline merges the runs lazily with a heap of run
+ * cursors, so a window of w entries over k feeds costs O(w log k) whatever
+ * the total number of entries.
+ * <p/>
+ * The runs are written to a file in the application's files directory, so
+ * the timeline opens with what earlier processes downloaded while the due
+ * feeds are refreshed.
+ */
+public class TimelineEngine implements MemoryGovernor.Trimmable {
+    public static final int DEFAULT_RUN_CAPACITY = 500;
+    /*
+     * Rough heap cost of one entry with its strings, for the memory governor
+     */
+    static final int ENTRY_BYTES = 512;
+    static final String FILE_NAME = "timeline.bin";
+    private static final int VERSION = 1;
+    private static final String TAG = "TimelineEngine";
+    /*
+     * Longer titles are cut when saved, writeUTF is limited to 64 KB
+     */
+    private static final int MAX_SAVED_TITLE = 1024;
+
+    /**
+     * Newest first; entries without a date go last, ties are broken on the
+     * item hash so the order is stable between merges.
+     */
+    static final Comparator<Entry> NEWEST_FIRST = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            long l = lhs.getTime();
+            long r = rhs.getTime();
+            if (l != r) {
+                return l > r ? -1 : 1;
+            }
+            long lh = lhs.getItemHash();
+            long rh = rhs.getItemHash();
+            return lh < rh ? -1 : (lh == rh ? 0 : 1);
+        }
+    };
+    private static final Comparator<Entry> OLDEST_FIRST = Collections
+            .reverseOrder(NEWEST_FIRST);
+
+    private final Map<String, FeedRun> runs = new HashMap<String, FeedRun>();
+    /*
+     * Feeds whose run was dropped by a trim, to be downloaded again
+     */
+    private final Set<String> forgotten = new HashSet<String>();
+    private final int runCapacity;
+    private final File file;
+    private final DuplicateIndex duplicates;
+    /*
+     * Serializes load and save, the file I/O never holds the monitor
+     */
+    private final Object ioLock = new Object();
+    private int size = 0;
+    private boolean loaded = false;
+    private boolean dirty = false;
+
+    /**
+     * @param runCapacity maximum number of entries kept per feed
+     * @param directory   where the runs are saved
+     * @param duplicates  index collapsing stories shared by several feeds,
+     *                    may be null
+     */
+    public TimelineEngine(int runCapacity, File directory,
+                          DuplicateIndex duplicates) {
+        this.runCapacity = runCapacity;
+        this.file = new File(directory, FILE_NAME);
+        this.duplicates = duplicates;
+    }
+
+    /**
+     * Merges freshly parsed entries into the run of their feed. Entries
+     * already in the run are skipped, and so are stories the duplicate index
+     * already knows from another feed: the feed's own list stays complete,
+     * only the timeline shows each story once. When the batch is larger than
+     * the run capacity only its newest entries are selected, with a bounded
+     * heap.
+     *
+     * @param feed  url of the feed
+     * @param fresh entries of the last refresh, in any order
+     */
+    public void merge(String feed, List<Entry> fresh) {
+        List<Entry> unique = fresh;
+        if (duplicates != null) {
+            // outside the engine monitor, the index locks entry by entry
+            DuplicateIndex.FeedParse parse = duplicates.beginFeed(feed);
+            unique = new ArrayList<Entry>(fresh.size());
+            for (Entry entry : fresh) {
+                if (duplicates.add(parse, entry)) {
+                    unique.add(entry);
+                }
+            }
+            Log.d(TAG, "collapsed " + parse.getCollapsed()
+                    + " duplicates of " + feed + ", index holds "
+                    + duplicates.size() + "/" + duplicates.getCapacity());
+        }
+        merge(feed, fresh, unique);
+    }
+
+    private synchronized void merge(String feed, List<Entry> fresh,
+                                    List<Entry> unique) {
+        FeedRun run = runs.get(feed);
+        if (run == null) {
+            run = new FeedRun();
+            runs.put(feed, run);
+            forgotten.remove(feed);
+        }
+        moveDescriptionRefs(fresh, run.entries);
+        List<Entry> added = newest(unique, run, runCapacity);
+        Collections.sort(added, NEWEST_FIRST);
+
+        List<Entry> old = run.entries;
+        List<Entry> merged = new ArrayList<Entry>(Math.min(runCapacity,
+                old.size() + added.size()));
+        int i = 0;
+        int j = 0;
+        while (merged.size() < runCapacity
+                && (i < old.size() || j < added.size())) {
+            if (j == added.size() || (i < old.size()
+                    && NEWEST_FIRST.compare(old.get(i), added.get(j)) <= 0)) {
+                merged.add(old.get(i++));
+            } else {
+                merged.add(added.get(j++));
+            }
+        }
+        size += merged.size() - old.size();
+        run.setEntries(merged);
+        dirty = true;
+    }
+
+    /**
+     * Points the entries already in the run to the raw feed of this refresh:
+     * the body they were parsed from is deleted after a few refreshes.
+     */
+    private static void moveDescriptionRefs(List<Entry> fresh, List<Entry> old) {
+        if (old.isEmpty()) {
+            return;
+        }
+        Map<Long, Entry> refs = new HashMap<Long, Entry>();
+        for (Entry entry : fresh) {
+            if (entry.getRawFeed() != null) {
+                refs.put(entry.getItemHash(), entry);
+            }
+        }
+        if (refs.isEmpty()) {
+            return;
+        }
+        for (Entry entry : old) {
+            Entry newer = refs.get(entry.getItemHash());
+            if (newer != null && newer != entry) {
+                entry.setDescriptionRef(newer.getRawFeed(),
+                        newer.getDescriptionIndex());
+            }
+        }
+    }
+
+    /**
+     * Selects up to {@code limit} newest entries of the batch that are not
+     * in the run yet.
+     */
+    private static List<Entry> newest(List<Entry> fresh, FeedRun run,
+                                      int limit) {
+        if (fresh.size() <= limit) {
+            List<Entry> added = new ArrayList<Entry>(fresh.size());
+            for (Entry entry : fresh) {
+                if (!run.hashes.contains(entry.getItemHash())) {
+                    added.add(entry);
+                }
+            }
+            return added;
+        }
+        // min-heap on the newest order: its head is the oldest kept entry
+        PriorityQueue<Entry> heap = new PriorityQueue<Entry>(limit + 1,
+                OLDEST_FIRST);
+        for (Entry entry : fresh) {
+            if (run.hashes.contains(entry.getItemHash())) {
+                continue;
+            }
+            if (heap.size() < limit) {
+                heap.add(entry);
+            } else if (NEWEST_FIRST.compare(entry, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(entry);
+            }
+        }
+        return new ArrayList<Entry>(heap);
+    }
+
+    /**
+     * Returns a window of the combined timeline.
+     *
+     * @param offset number of newest entries to skip
+     * @param count  maximum number of entries to return
+     * @return entries of every feed, newest first
+     */
+    public synchronized List<Entry> window(int offset, int count) {
+        List<Entry> window = new ArrayList<Entry>(Math.max(0,
+                Math.min(count, size - offset)));
+        PriorityQueue<Cursor> heads = new PriorityQueue<Cursor>(
+                Math.max(1, runs.size()));
+        for (FeedRun run : runs.values()) {
+            if (!run.entries.isEmpty()) {
+                heads.add(new Cursor(run.entries));
+            }
+        }
+        int skipped = 0;
+        while (window.size() < count && !heads.isEmpty()) {
+            Cursor head = heads.poll();
+            if (skipped < offset) {
+                skipped++;
+            } else {
+                window.add(head.current());
+            }
+            if (head.advance()) {
+                heads.add(head);
+            }
+        }
+        return window;
+    }
+
+    /**
+     * @return the newest {@code count} entries over all feeds
+     */
+    public List<Entry> newest(int count) {
+        return window(0, count);
+    }
+
+    /**
+     * @return whether the feed has been merged at least once
+     */
+    public synchronized boolean contains(String feed) {
+        return runs.containsKey(feed);
+    }
+
+    /**
+     * @return the feeds dropped by trims since the last call
+     */
+    public synchronized List<String> takeForgotten() {
+        List<String> feeds = new ArrayList<String>(forgotten);
+        forgotten.clear();
+        return feeds;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized long sizeBytes() {
+        return (long) size * ENTRY_BYTES;
+    }
+
+    @Override
+    public void spill() {
+        save();
+    }
+
+    /**
+     * Reads the saved runs once; must be called off the UI thread. Feeds
+     * merged in the meantime keep their fresher run.
+     */
+    public void load() {
+        synchronized (ioLock) {
+            synchronized (this) {
+                if (loaded) {
+                    return;
+                }
+            }
+            Map<String, List<Entry>> saved = new HashMap<String, List<Entry>>();
+            DataInputStream in = null;
+            try {
+                if (file.exists()) {
+                    in = new DataInputStream(new BufferedInputStream(
+                            new FileInputStream(file)));
+                    if (in.readInt() == VERSION) {
+                        int feeds = in.readInt();
+                        for (int i = 0; i < feeds; i++) {
+                            String feed = in.readUTF();
+                            int count = in.readInt();
+                            List<Entry> entries = new ArrayList<Entry>(count);
+                            for (int j = 0; j < count; j++) {
+                                entries.add(readEntry(in, feed));
+                            }
+                            saved.put(feed, entries);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(TAG, e.toString());
+            } catch (RuntimeException e) {
+                // e.g. a link the URL class rejects, keep what was read
+                Log.e(TAG, e.toString());
+            } finally {
+                closeQuietly(in);
+            }
+            synchronized (this) {
+                for (Map.Entry<String, List<Entry>> feed : saved.entrySet()) {
+                    if (!runs.containsKey(feed.getKey())) {
+                        FeedRun run = new FeedRun();
+                        // saved newest first, as the runs keep them
+                        run.setEntries(feed.getValue());
+                        runs.put(feed.getKey(), run);
+                        size += feed.getValue().size();
+                    }
+                }
+                loaded = true;
+            }
+        }
+    }
+
+    /**
+     * Writes the runs if they changed since the last save; must be called
+     * off the UI thread. Runs are replaced, never modified, on merge, so a
+     * copy of the map is a consistent snapshot to write outside the monitor.
+     * Nothing is written before the saved runs have been loaded.
+     */
+    public void save() {
+        synchronized (ioLock) {
+            Map<String, List<Entry>> snapshot = new HashMap<String, List<Entry>>();
+            synchronized (this) {
+                if (!dirty || !loaded) {
+                    return;
+                }
+                for (Map.Entry<String, FeedRun> run : runs.entrySet()) {
+                    snapshot.put(run.getKey(), run.getValue().entries);
+                }
+                dirty = false;
+            }
+            File tmp = new File(file.getPath() + ".tmp");
+            DataOutputStream out = null;
+            boolean saved = false;
+            try {
+                out = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(tmp)));
+                out.writeInt(VERSION);
+                out.writeInt(snapshot.size());
+                for (Map.Entry<String, List<Entry>> feed : snapshot.entrySet()) {
+                    out.writeUTF(feed.getKey());
+                    out.writeInt(feed.getValue().size());
+                    for (Entry entry : feed.getValue()) {
+                        writeEntry(out, entry);
+                    }
+                }
+                out.close();
+                out = null;
+                saved = tmp.renameTo(file);
+            } catch (IOException e) {
+                Log.e(TAG, e.toString());
+            } finally {
+                closeQuietly(out);
+                if (!saved) {
+                    synchronized (this) {
+                        dirty = true;
+                    }
+                }
+            }
+        }
+    }
+
+    private static void writeEntry(DataOutputStream out, Entry entry)
+            throws IOException {
+        String title = entry.getTitle() == null ? "" : entry.getTitle();
+        out.writeUTF(title.length() > MAX_SAVED_TITLE
+                ? title.substring(0, MAX_SAVED_TITLE) : title);
+        out.writeUTF(entry.getLink() == null ? "" : entry.getLink().toString());
+        out.writeLong(entry.getTime());
+        String summary = entry.getSummary();
+        out.writeBoolean(summary != null);
+        if (summary != null) {
+            out.writeUTF(summary);
+        }
+    }
+
+    private static Entry readEntry(DataInputStream in, String feed)
+            throws IOException {
+        Entry entry = new Entry();
+        entry.setFeed(feed);
+        entry.setTitle(in.readUTF());
+        String link = in.readUTF();
+        if (link.length() > 0) {
+            entry.setLink(link);
+        }
+        entry.setTime(in.readLong());
+        if (in.readBoolean()) {
+            entry.setSummary(in.readUTF());
+        }
+        return entry;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                Log.e(TAG, e.toString());
+            }
+        }
+    }
+
+    /**
+     * Shortens every run to the same number of entries, dropping the oldest.
+     * Runs left empty are dropped and their feeds reported by
+     * {@link #takeForgotten()}, so the next timeline refresh downloads them
+     * again.
+     */
+    @Override
+    public synchronized void trimToBytes(long bytes) {
+        if (size == 0 || sizeBytes() <= bytes) {
+            return;
+        }
+        int keepPerRun = (int) (bytes / ENTRY_BYTES / runs.size());
+        Iterator<Map.Entry<String, FeedRun>> it = runs.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, FeedRun> feedRun = it.next();
+            FeedRun run = feedRun.getValue();
+            if (run.entries.size() > keepPerRun) {
+                size -= run.entries.size() - keepPerRun;
+                dirty = true;
+                if (keepPerRun == 0) {
+                    forgotten.add(feedRun.getKey());
+                    it.remove();
+                } else {
+                    run.setEntries(new ArrayList<Entry>(
+                            run.entries.subList(0, keepPerRun)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Entries of one feed, newest first, with their hashes for duplicate
+     * checks
+     */
+    private static class FeedRun {
+        List<Entry> entries = new ArrayList<Entry>();
+        LongHashSet hashes = new LongHashSet();
+
+        void setEntries(List<Entry> entries) {
+            this.entries = entries;
+            hashes = new LongHashSet(entries.size());
+            for (Entry entry : entries) {
+                hashes.add(entry.getItemHash());
+            }
+        }
+    }
+
+    /**
+     * Position in a run during a k-way merge
+     */
+    private static class Cursor implements Comparable<Cursor> {
+        private final List<Entry> entries;
+        private int position = 0;
+
+        Cursor(List<Entry> entries) {
+            this.entries = entries;
+        }
+
+        Entry current() {
+            return entries.get(position);
+        }
+
+        boolean advance() {
+            return ++position < entries.size();
+        }
+
+        @Override
+        public int compareTo(Cursor another) {
+            return NEWEST_FIRST.compare(current(), another.current());
+        }
+    }
+}
@@ -0,0 +1,432 @@
+/*
+ * Copyright (C) 2013
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package nl.adben.android.rssreader;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Records feed responses as they come off the network and plays them back
+ * later, so that a slow refresh can be profiled offline, as many times as
+ * needed.
+ * <p/>
+ * In capture mode each response is written to one file per feed: status,
+ * headers, then every chunk returned by the socket with the time it arrived
+ * at. In replay mode the download is replaced by that file; the chunks are
+ * handed to the parser in the same sizes, either at their original pace or
+ * as fast as possible.
+ * <p/>
+ * Archive layout, big endian: magic, version, url, capture time, response
+ * delay (ms), status code, header count, header name/value pairs, then
+ * chunks of (arrival ms, length, bytes) ended by a chunk of length -1.
+ */
+public class TrafficArchive {
+    static final String TAG = "TrafficArchive";
+    static final String DIRECTORY = "traffic";
+    static final String SUFFIX = ".feed";
+    private static final int MAGIC = 0x52535354;
+    private static final int VERSION = 1;
+    private static final int END_OF_BODY = -1;
+
+    /**
+     * What happens to the responses, values of the trafficPref preference
+     */
+    public enum Mode {
+        OFF, CAPTURE, REPLAY, REPLAY_FAST;
+
+        /**
+         * @param value preference value, e.g. "replay_fast"
+         * @return the mode, OFF for unknown values
+         */
+        public static Mode fromPreference(String value) {
+            try {
+                return value == null ? OFF
+                        : valueOf(value.toUpperCase(Locale.US));
+            } catch (IllegalArgumentException e) {
+                return OFF;
+            }
+        }
+
+        public boolean isReplay() {
+            return this == REPLAY || this == REPLAY_FAST;
+        }
+    }
+
+    private final File directory;
+
+    /**
+     * @param directory where the archives are stored, created on the first
+     *                  capture
+     */
+    public TrafficArchive(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return the archive of a feed, one file per url
+     */
+    File fileFor(String url) {
+        return new File(directory, Long.toHexString(DuplicateIndex.hash64(url))
+                + SUFFIX);
+    }
+
+    /**
+     * @return whether a response of the feed has been captured
+     */
+    public boolean has(String url) {
+        return fileFor(url).isFile();
+    }
+
+    /**
+     * Starts recording a response. The archive only replaces the previous
+     * one of the feed once the body has been read to its end and the stream
+     * closed.
+     *
+     * @param url       feed requested
+     * @param conn      connected connection, for the status and headers
+     * @param in        body of the response
+     * @param requested elapsed realtime of the request, before connecting
+     * @return a stream returning the same bytes as {@code in}; {@code in}
+     * itself if the archive cannot be written, the download goes on
+     * without being captured
+     */
+    public InputStream capture(String url, HttpURLConnection conn,
+                               InputStream in, long requested) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(TAG, "not capturing " + url + ": cannot create " + directory);
+            return in;
+        }
+        File file = fileFor(url);
+        File tmp = new File(directory, file.getName() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(url);
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt((int) (SystemClock.elapsedRealtime() - requested));
+            out.writeInt(conn.getResponseCode());
+            List<String[]> headers = new ArrayList<String[]>();
+            for (Map.Entry<String, List<String>> field
+                    : conn.getHeaderFields().entrySet()) {
+                // the null key holds the status line
+                String name = field.getKey() == null ? "" : field.getKey();
+                for (String value : field.getValue()) {
+                    headers.add(new String[]{name, value == null ? "" : value});
+                }
+            }
+            out.writeInt(headers.size());
+            for (String[] header : headers) {
+                // writeUTF throws on values above 64 KB
+                out.writeUTF(header[0]);
+                out.writeUTF(header[1]);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "not capturing " + url + ": " + e.toString());
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException closing) {
+                    Log.w(TAG, closing.toString());
+                }
+            }
+            tmp.delete();
+            return in;
+        }
+        return new CaptureStream(in, out, tmp, file, requested);
+    }
+
+    /**
+     * Opens the captured response of a feed.
+     *
+     * @param url  feed to replay
+     * @param fast whether to ignore the recorded timing
+     * @throws FileNotFoundException if the feed was never captured
+     */
+    public Replay replay(String url, boolean fast) throws IOException {
+        return new Replay(fileFor(url), fast);
+    }
+
+    /**
+     * Copies the body to the archive chunk by chunk, with the arrival time
+     * of each chunk.
+     */
+    private static class CaptureStream extends FilterInputStream {
+        private final DataOutputStream out;
+        private final File tmp;
+        private final File file;
+        private final long requested;
+        private boolean ended = false;
+        private boolean closed = false;
+        // set when writing the archive failed, the body is still returned
+        private boolean abandoned = false;
+        private int chunks = 0;
+        private long bytes = 0;
+
+        CaptureStream(InputStream in, DataOutputStream out, File tmp,
+                      File file, long requested) {
+            super(in);
+            this.out = out;
+            this.tmp = tmp;
+            this.file = file;
+            this.requested = requested;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count)
+                throws IOException {
+            int read = in.read(buffer, offset, count);
+            if (read == -1) {
+                ended = true;
+            } else if (read > 0 && !abandoned) {
+                try {
+                    out.writeInt((int) (SystemClock.elapsedRealtime() - requested));
+                    out.writeInt(read);
+                    out.write(buffer, offset, read);
+                    chunks++;
+                    bytes += read;
+                } catch (IOException e) {
+                    abandon(e);
+                }
+            }
+            return read;
+        }
+
+        /**
+         * Stops capturing, e.g. on a full disk, without failing the download.
+         */
+        private void abandon(IOException e) {
+            Log.w(TAG, "not capturing " + file.getName() + ": " + e.toString());
+            abandoned = true;
+            try {
+                out.close();
+            } catch (IOException closing) {
+                Log.w(TAG, closing.toString());
+            }
+            tmp.delete();
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            // skipped bytes would be missing from the archive
+            throw new IOException("skip() is not supported while capturing");
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                super.close();
+            } finally {
+                finish();
+            }
+        }
+
+        private void finish() {
+            if (abandoned) {
+                return;
+            }
+            try {
+                if (ended) {
+                    out.writeInt((int) (SystemClock.elapsedRealtime() - requested));
+                    out.writeInt(END_OF_BODY);
+                }
+                out.close();
+            } catch (IOException e) {
+                abandon(e);
+                return;
+            }
+            if (ended && tmp.renameTo(file)) {
+                Log.i(TAG, "captured " + file.getName() + " chunks=" + chunks
+                        + " bytes=" + bytes);
+            } else {
+                // an incomplete body would replay as a truncated feed
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * A captured response played back as a stream: each read returns at most
+     * the rest of the current chunk, waiting for its recorded arrival time
+     * unless replaying at full speed.
+     */
+    public static class Replay extends InputStream {
+        private final DataInputStream in;
+        private final boolean fast;
+        private final String url;
+        private final int responseCode;
+        private final List<String[]> headers = new ArrayList<String[]>();
+        private final long started = SystemClock.elapsedRealtime();
+        private int remaining = 0;
+        private boolean ended = false;
+        private int chunks = 0;
+        private long bytes = 0;
+
+        Replay(File file, boolean fast) throws IOException {
+            this.fast = fast;
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    throw new IOException("Not a traffic archive: " + file);
+                }
+                url = in.readUTF();
+                in.readLong();
+                int responseDelay = in.readInt();
+                responseCode = in.readInt();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    headers.add(new String[]{in.readUTF(), in.readUTF()});
+                }
+                waitUntil(responseDelay);
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public int getResponseCode() {
+            return responseCode;
+        }
+
+        /**
+         * @param name header name, case insensitive
+         * @return the first value of the header, null if absent
+         */
+        public String getHeaderField(String name) {
+            for (String[] header : headers) {
+                if (header[0].equalsIgnoreCase(name)) {
+                    return header[1];
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return the recorded Content-Length, -1 if there was none
+         */
+        public int getContentLength() {
+            String length = getHeaderField("Content-Length");
+            try {
+                return length == null ? -1 : Integer.parseInt(length.trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count)
+                throws IOException {
+            if (count == 0) {
+                return 0;
+            }
+            if (remaining == 0) {
+                if (ended) {
+                    return -1;
+                }
+                int arrival = in.readInt();
+                int length = in.readInt();
+                waitUntil(arrival);
+                if (length == END_OF_BODY) {
+                    ended = true;
+                    Log.i(TAG, "replayed " + url + " chunks=" + chunks
+                            + " bytes=" + bytes + " ms="
+                            + (SystemClock.elapsedRealtime() - started));
+                    return -1;
+                }
+                remaining = length;
+                chunks++;
+            }
+            int read = in.read(buffer, offset, Math.min(count, remaining));
+            if (read == -1) {
+                throw new EOFException("Truncated traffic archive of " + url);
+            }
+            remaining -= read;
+            bytes += read;
+            return read;
+        }
+
+        @Override
+        public int available() {
+            return remaining;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private void waitUntil(int offset) throws InterruptedIOException {
+            if (fast) {
+                return;
+            }
+            long delay = started + offset - SystemClock.elapsedRealtime();
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+#!/bin/sh
+#
+# Cold start benchmark for the reader.
+#
+# Force-stops the installed app RUNS times, launches it with am start -W and
+# reads the StartupTrace line from logcat. Fails when the median time to the
+# first content row exceeds THRESHOLD_MS, or when a run shows an error row
+# (e.g. no connection) instead of feed content.
+#
+# usage: startup_benchmark.sh <adb> <runs> <threshold_ms>
+
+ADB=${1:-adb}
+RUNS=${2:-5}
+THRESHOLD_MS=${3:-1500}
+PACKAGE=nl.adben.android.rssreader
+ACTIVITY=$PACKAGE/.RssReaderApp
+# the first content row needs a download, allow it to arrive
+WAIT_SECONDS=15
+
+results=""
+i=0
+while [ $i -lt "$RUNS" ]; do
+    "$ADB" shell am force-stop $PACKAGE
+    "$ADB" logcat -c
+    total=$("$ADB" shell am start -W -n $ACTIVITY | tr -d '\r' \
+        | sed -n 's/^TotalTime: *//p')
+    content=""
+    error=""
+    waited=0
+    while [ -z "$content" ] && [ -z "$error" ] \
+            && [ $waited -lt $WAIT_SECONDS ]; do
+        sleep 1
+        waited=$((waited + 1))
+        trace=$("$ADB" logcat -d -s StartupTrace:I | tr -d '\r')
+        content=$(echo "$trace" \
+            | sed -n 's/.*first_content_ms=\([0-9]*\).*/\1/p' | tail -n 1)
+        error=$(echo "$trace" | grep 'content_error=1' | tail -n 1)
+    done
+    if [ -n "$error" ] && [ -z "$content" ]; then
+        echo "run $i: an error row was shown instead of feed content" >&2
+        exit 1
+    fi
+    if [ -z "$content" ]; then
+        echo "run $i: no feed content row after ${WAIT_SECONDS}s" >&2
+        exit 1
+    fi
+    echo "run $i: am_total_ms=$total first_content_ms=$content"
+    results="$results $content"
+    i=$((i + 1))
+done
+
+median=$(for r in $results; do echo "$r"; done | sort -n \
+    | awk '{ v[NR] = $1 } END { print v[int((NR + 1) / 2)] }')
+echo "median first_content_ms=$median threshold_ms=$THRESHOLD_MS"
+if [ "$median" -gt "$THRESHOLD_MS" ]; then
+    echo "startup regression: $median ms > $THRESHOLD_MS ms" >&2
+    exit 1
+fi